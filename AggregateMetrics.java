@@ -0,0 +1,214 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory metrics registry which sums the metrics of all trees, e.g. to be polled by a dashboard.
+ * Keeps the maximum node count and depth and the metrics of the slowest and of the largest search
+ */
+public class AggregateMetrics implements MetricsRegistry {
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder nodes = new LongAdder();
+    private final LongAdder markedNodes = new LongAdder();
+    private final LongAdder searchNanos = new LongAdder();
+    private final LongAdder findChildrenNanos = new LongAdder();
+    private final LongAdder enumerations = new LongAdder();
+    private final LongAdder leafPaths = new LongAdder();
+    private final LongAdder paths = new LongAdder();
+    private final LongAdder pathsNanos = new LongAdder();
+    private final LongAdder jsons = new LongAdder();
+    private final LongAdder jsonNanos = new LongAdder();
+    private final LongAccumulator maxNodes = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    private final AtomicReference<SearchMetrics> slowest = new AtomicReference<>();
+    private final AtomicReference<SearchMetrics> largest = new AtomicReference<>();
+
+    @Override
+    public void searched(SearchMetrics metrics) {
+        searches.increment();
+        queries.add(metrics.getQueries());
+        rows.add(metrics.getRows());
+        nodes.add(metrics.getNodes());
+        markedNodes.add(metrics.getMarkedNodes());
+        searchNanos.add(metrics.getSearchNanos());
+        findChildrenNanos.add(metrics.getFindChildrenNanos());
+        maxNodes.accumulate(metrics.getNodes());
+        maxDepth.accumulate(metrics.getDepth());
+        slowest.accumulateAndGet(metrics,
+                (current, next) -> current == null || next.getSearchNanos() > current.getSearchNanos() ? next : current);
+        largest.accumulateAndGet(metrics,
+                (current, next) -> current == null || next.getNodes() > current.getNodes() ? next : current);
+    }
+
+    @Override
+    public void pathsEnumerated(SearchMetrics metrics, long nanos) {
+        enumerations.increment();
+        leafPaths.add(metrics.getLeafPaths());
+        paths.add(metrics.getPaths());
+        pathsNanos.add(nanos);
+    }
+
+    @Override
+    public void jsonWritten(SearchMetrics metrics, long nanos) {
+        jsons.increment();
+        jsonNanos.add(nanos);
+    }
+
+    /**
+     *
+     * @return - number of trees built
+     */
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    /**
+     *
+     * @return - number of queries issued to the bac sources
+     */
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    /**
+     *
+     * @return - number of rows fetched from the bac sources
+     */
+    public long getRows() {
+        return rows.sum();
+    }
+
+    /**
+     *
+     * @return - number of tree nodes
+     */
+    public long getNodes() {
+        return nodes.sum();
+    }
+
+    /**
+     *
+     * @return - number of marked (dead end) tree nodes
+     */
+    public long getMarkedNodes() {
+        return markedNodes.sum();
+    }
+
+    /**
+     *
+     * @return - time spent building trees in nanoseconds
+     */
+    public long getSearchNanos() {
+        return searchNanos.sum();
+    }
+
+    /**
+     *
+     * @return - time spent in findChildren in nanoseconds
+     */
+    public long getFindChildrenNanos() {
+        return findChildrenNanos.sum();
+    }
+
+    /**
+     *
+     * @return - number of path enumerations
+     */
+    public long getEnumerations() {
+        return enumerations.sum();
+    }
+
+    /**
+     *
+     * @return - number of root to leaf paths walked by the path enumerations
+     */
+    public long getLeafPaths() {
+        return leafPaths.sum();
+    }
+
+    /**
+     *
+     * @return - number of distinct paths returned by the path enumerations
+     */
+    public long getPaths() {
+        return paths.sum();
+    }
+
+    /**
+     *
+     * @return - time spent enumerating paths in nanoseconds
+     */
+    public long getPathsNanos() {
+        return pathsNanos.sum();
+    }
+
+    /**
+     *
+     * @return - number of json writes
+     */
+    public long getJsons() {
+        return jsons.sum();
+    }
+
+    /**
+     *
+     * @return - time spent writing json in nanoseconds
+     */
+    public long getJsonNanos() {
+        return jsonNanos.sum();
+    }
+
+    /**
+     *
+     * @return - maximum number of nodes of a tree
+     */
+    public long getMaxNodes() {
+        return maxNodes.get();
+    }
+
+    /**
+     *
+     * @return - maximum number of bacs on a path
+     */
+    public int getMaxDepth() {
+        return (int) maxDepth.get();
+    }
+
+    /**
+     *
+     * @return - metrics of the slowest search, null if there was none
+     */
+    public SearchMetrics getSlowest() {
+        return slowest.get();
+    }
+
+    /**
+     *
+     * @return - metrics of the search which built the largest tree, null if there was none
+     */
+    public SearchMetrics getLargest() {
+        return largest.get();
+    }
+
+    /**
+     *
+     * @return - string
+     */
+    @Override
+    public String toString() {
+        return "searches=" + getSearches() + " queries=" + getQueries() + " rows=" + getRows() +
+                " nodes=" + getNodes() + " marked=" + getMarkedNodes() + " maxNodes=" + getMaxNodes() +
+                " maxDepth=" + getMaxDepth() + " searchNanos=" + getSearchNanos() +
+                " findChildrenNanos=" + getFindChildrenNanos() + " enumerations=" + getEnumerations() +
+                " leafPaths=" + getLeafPaths() + " paths=" + getPaths() + " pathsNanos=" + getPathsNanos() +
+                " jsons=" + getJsons() + " jsonNanos=" + getJsonNanos();
+    }
+}
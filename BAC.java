@@ -6,25 +6,32 @@ package org.nyumc.isg.lims.objects;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
 import org.nyumc.isg.lims.common.Jsonable;
+import org.nyumc.isg.lims.common.Rangeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
 @SuppressWarnings("SpellCheckingInspection")
-public class BAC implements Jsonable {
+public class BAC implements Jsonable, Rangeable {
     private String chromosome;
     private String bin;
-    private final int start;
-    private final int end;
-    private final String name;
+    private int start;
+    private int end;
+    private String name;
     private int score;
-    private final String strand;
+    private String strand;
     private int thickStart;
     private int thickEnd;
     private String reserved;
     private int blockCount;
     private String blockSize;
     private String chromStarts;
+    private BACStore store;
+    private int row;
 
     /**
      * Depricated constructor
@@ -77,6 +84,17 @@ public class BAC implements Jsonable {
         this.strand = strand;
     }
 
+    /**
+     * Lightweight view over a row of the columnar store, every column is read from the store on access
+     * and the name is decoded on first use
+     * @param store - bac store
+     * @param row - row of the store
+     */
+    BAC(BACStore store, int row) {
+        this.store = store;
+        this.row = row;
+    }
+
     /**
      *
      * @param rs - SQL result set
@@ -103,7 +121,7 @@ public class BAC implements Jsonable {
      * @return - csv representation of the BAC
      */
     public String toCSV(){
-        return name + "," + chromosome + "," + start+ "," + end + "," + strand;
+        return getName() + "," + getChromosome() + "," + getStart() + "," + getEnd() + "," + getStrand();
     }
 
     /**
@@ -111,7 +129,7 @@ public class BAC implements Jsonable {
      * @return chromosome
      */
     public String getChromosome() {
-        return chromosome;
+        return store != null ? store.getChromosome(row) : chromosome;
     }
 
     /**
@@ -119,7 +137,7 @@ public class BAC implements Jsonable {
      * @return bin
      */
     public String getBin() {
-        return bin;
+        return store != null ? store.getBin(row) : bin;
     }
 
     /**
@@ -127,7 +145,7 @@ public class BAC implements Jsonable {
      * @return - start coordinatye
      */
     public int getStart() {
-        return start;
+        return store != null ? store.getStart(row) : start;
     }
 
     /**
@@ -135,7 +153,7 @@ public class BAC implements Jsonable {
      * @return - end coordinate
      */
     public int getEnd() {
-        return end;
+        return store != null ? store.getEnd(row) : end;
     }
 
     /**
@@ -143,15 +161,27 @@ public class BAC implements Jsonable {
      * @return - bac name
      */
     public String getName() {
+        if (name == null && store != null)
+            name = store.getName(row);
         return name;
     }
 
+    /**
+     *
+     * @return - bac library prefix (first three letters of the name, e.g. RP1 for RP11 clones)
+     */
+    public String getLibrary() {
+        if (store != null)
+            return store.getLibrary(row);
+        return getName().substring(0, 3);
+    }
+
     /**
      *
      * @return bac score
      */
     public int getScore() {
-        return score;
+        return store != null ? store.getScore(row) : score;
     }
 
     /**
@@ -159,7 +189,7 @@ public class BAC implements Jsonable {
      * @return bac strand
      */
     public String getStrand() {
-        return strand;
+        return store != null ? store.getStrand(row) : strand;
     }
 
     /**
@@ -167,7 +197,7 @@ public class BAC implements Jsonable {
      * @return - thick start
      */
     public int getThickStart() {
-        return thickStart;
+        return store != null ? store.getThickStart(row) : thickStart;
     }
 
     /**
@@ -175,7 +205,7 @@ public class BAC implements Jsonable {
      * @return thick end
      */
     public int getThickEnd() {
-        return thickEnd;
+        return store != null ? store.getThickEnd(row) : thickEnd;
     }
 
     /**
@@ -183,7 +213,7 @@ public class BAC implements Jsonable {
      * @return reserved value
      */
     public String getReserved() {
-        return reserved;
+        return store != null ? store.getReserved(row) : reserved;
     }
 
     /**
@@ -191,7 +221,7 @@ public class BAC implements Jsonable {
      * @return block count
      */
     public int getBlockCount() {
-        return blockCount;
+        return store != null ? store.getBlockCount(row) : blockCount;
     }
 
     /**
@@ -199,7 +229,7 @@ public class BAC implements Jsonable {
      * @return block size
      */
     public String getBlockSize() {
-        return blockSize;
+        return store != null ? store.getBlockSize(row) : blockSize;
     }
 
     /**
@@ -207,7 +237,7 @@ public class BAC implements Jsonable {
      * @return chromosome start
      */
     public String getChromStarts() {
-        return chromStarts;
+        return store != null ? store.getChromStarts(row) : chromStarts;
     }
 
     /**
@@ -216,19 +246,19 @@ public class BAC implements Jsonable {
      */
     public String toBEDString() {
         return "BAC{" +
-                "chromosome='" + chromosome + '\'' +
-                ", bin='" + bin + '\'' +
-                ", start=" + start +
-                ", end=" + end +
-                ", name='" + name + '\'' +
-                ", score=" + score +
-                ", strand='" + strand + '\'' +
-                ", thickStart=" + thickStart +
-                ", thickEnd=" + thickEnd +
-                ", reserved='" + reserved + '\'' +
-                ", blockCount=" + blockCount +
-                ", blockSize='" + blockSize + '\'' +
-                ", chromStarts='" + chromStarts + '\'' +
+                "chromosome='" + getChromosome() + '\'' +
+                ", bin='" + getBin() + '\'' +
+                ", start=" + getStart() +
+                ", end=" + getEnd() +
+                ", name='" + getName() + '\'' +
+                ", score=" + getScore() +
+                ", strand='" + getStrand() + '\'' +
+                ", thickStart=" + getThickStart() +
+                ", thickEnd=" + getThickEnd() +
+                ", reserved='" + getReserved() + '\'' +
+                ", blockCount=" + getBlockCount() +
+                ", blockSize='" + getBlockSize() + '\'' +
+                ", chromStarts='" + getChromStarts() + '\'' +
                 '}';
     }
 
@@ -240,30 +270,61 @@ public class BAC implements Jsonable {
     @Override
     public boolean equals(Object other){
         if (other.getClass().equals(this.getClass()))
-            return this.name.equals(((BAC)other).name);
+            return this.getName().equals(((BAC)other).getName());
         return false;
     }
 
+    /**
+     *
+     * @return hash code of the name, consistent with equals
+     */
+    @Override
+    public int hashCode() {
+        return getName().hashCode();
+    }
+
     /**
      *
      * @return json object representation of the BAC object
      */
     public JsonObject toJsonObject() {
         JsonObject jo = new JsonObject();
-        jo.add("name", new JsonPrimitive(name));
-        jo.add("chromosome", new JsonPrimitive(chromosome));
-        jo.add("start", new JsonPrimitive(start));
-        jo.add("end", new JsonPrimitive(end));
-        jo.add("strand", new JsonPrimitive(strand));
+        jo.add("name", new JsonPrimitive(getName()));
+        jo.add("chromosome", new JsonPrimitive(getChromosome()));
+        jo.add("start", new JsonPrimitive(getStart()));
+        jo.add("end", new JsonPrimitive(getEnd()));
+        jo.add("strand", new JsonPrimitive(getStrand()));
         return jo;
     }
 
+    /**
+     * writes the same record as toJsonObject straight to the stream
+     * @param writer - json writer
+     * @throws IOException - IO exception
+     */
+    @Override
+    public void toJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("name").value(getName());
+        writer.name("chromosome").value(getChromosome());
+        writer.name("start").value(getStart());
+        writer.name("end").value(getEnd());
+        writer.name("strand").value(getStrand());
+        writer.endObject();
+    }
+
     /**
      *
      * @return json string representation of the BAC object
      */
     public String toJson() {
-        return toJsonObject().toString();
+        StringWriter json = new StringWriter();
+        try {
+            toJson(new JsonWriter(json));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return json.toString();
     }
 
     /**
@@ -0,0 +1,257 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import org.nyumc.isg.lims.common.IntervalIndex;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * In-memory BAC source: interval indexes keyed by chromosome and library.
+ * The library/end_loc derived table joined by the SQL queries matches every row with itself,
+ * so the query shapes reduce to range predicates on start and end coordinates
+ */
+public class BACIndex implements BACSource {
+    private final BACStore store;
+    private final Map<String, Map<String, IntervalIndex<BAC>>> chromosomes = new HashMap<>();
+    private final int maxLength;
+    private long treeBytes;
+
+    /**
+     * Constructor
+     * @param bacs - bacs to index
+     */
+    public BACIndex(Collection<BAC> bacs) {
+        this(new BACStore(bacs));
+    }
+
+    /**
+     * Constructor, indexes a sorted copy of the store
+     * @param bacs - store of bacs to index
+     */
+    public BACIndex(BACStore bacs) {
+        store = bacs.sort();
+        maxLength = getMaxLength(store);
+        int[] segments = store.getSegments();
+        index(segments, getMaxEnds(store, segments));
+    }
+
+    /**
+     * Constructor over a sorted store and its precomputed interval trees, e.g. a mapped library file
+     * @param store - store sorted by chromosome, library and start
+     * @param segments - first row of every chromosome and library group followed by the number of rows
+     * @param maxEnds - maximum end tree of every group
+     * @param maxLength - maximum bac length
+     */
+    BACIndex(BACStore store, int[] segments, List<IntBuffer> maxEnds, int maxLength) {
+        this.store = store;
+        this.maxLength = maxLength;
+        index(segments, maxEnds);
+    }
+
+    /**
+     * builds the interval index of every chromosome and library group of the store
+     * @param segments - group bounds of the store
+     * @param maxEnds - maximum end tree of every group
+     */
+    private void index(int[] segments, List<IntBuffer> maxEnds) {
+        for (int i = 0; i + 1 < segments.length; i++) {
+            int from = segments[i];
+            chromosomes.computeIfAbsent(store.getChromosome(from), chr -> new TreeMap<>())
+                    .put(store.getLibrary(from),
+                            new IntervalIndex<>(store.getStarts(), from, segments[i + 1], maxEnds.get(i), store::getBAC));
+            treeBytes += 4L * maxEnds.get(i).capacity();
+        }
+    }
+
+    /**
+     *
+     * @param store - sorted store
+     * @param segments - group bounds of the store
+     * @return - maximum end tree of every group
+     */
+    static List<IntBuffer> getMaxEnds(BACStore store, int[] segments) {
+        List<IntBuffer> maxEnds = new ArrayList<>();
+        for (int i = 0; i + 1 < segments.length; i++) {
+            maxEnds.add(IntervalIndex.getMaxEnds(store.getEnds(), segments[i], segments[i + 1]));
+        }
+        return maxEnds;
+    }
+
+    /**
+     *
+     * @param store - store
+     * @return - maximum bac length
+     */
+    static int getMaxLength(BACStore store) {
+        int maxLength = 0;
+        for (int row = 0; row < store.size(); row++) {
+            maxLength = Math.max(maxLength, store.getEnd(row) - store.getStart(row));
+        }
+        return maxLength;
+    }
+
+    /**
+     * loads all bacs of the bac library table
+     * @param connection - database connection
+     * @param table - database table (bac library) name
+     * @return - index of the bacs
+     * @throws SQLException - SQL exception
+     */
+    public static BACIndex load(Connection connection, String table) throws SQLException {
+        String sql = "select * from lims." + table;
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            return new BACIndex(BACStore.read(ps));
+        }
+    }
+
+    /**
+     * loads all bacs of the chromosome from the bac library table
+     * @param connection - database connection
+     * @param table - database table (bac library) name
+     * @param chr - chromosome
+     * @return - index of the chromosome bacs
+     * @throws SQLException - SQL exception
+     */
+    public static BACIndex load(Connection connection, String table, String chr) throws SQLException {
+        String sql = "select * from lims." + table + " where chromosome = ?";
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            ps.setString(1, chr);
+            return new BACIndex(BACStore.read(ps));
+        }
+    }
+
+    /**
+     *
+     * @param parent - parent bac, null for the root of the tree
+     * @param chr - chromosome
+     * @param start - start coordinate of the region
+     * @param end - end coordinate of the region
+     * @return - list of bacs
+     */
+    @Override
+    public List<BAC> findBACs(BAC parent, String chr, int start, int end) {
+        List<BAC> bacs = new ArrayList<>();
+        Map<String, IntervalIndex<BAC>> libraries = chromosomes.get(chr);
+        if (libraries == null)
+            return bacs;
+        if (parent == null) {
+            // 1) start_loc <= start and end_loc >= end, 2) start_loc <= start and end_loc > start
+            int endAtLeast = start == end ? start + 1 : end;
+            for (IntervalIndex<BAC> index : libraries.values()) {
+                index.query(Integer.MIN_VALUE, start, endAtLeast, bacs);
+            }
+        } else {
+            // 3), 4) start_loc > parent start and start_loc <= start and end_loc >= end and end_loc > parent end
+            IntervalIndex<BAC> index = libraries.get(parent.getLibrary());
+            if (index != null)
+                index.query(parent.getStart(), start, Math.max(end, parent.getEnd() + 1), bacs);
+        }
+        return bacs;
+    }
+
+    /**
+     *
+     * @param chr - chromosome
+     * @param open - locus open position
+     * @param close - locus close position
+     * @return - store of candidate bacs
+     */
+    @Override
+    public BACStore findWindow(String chr, int open, int close) {
+        BACStore window = new BACStore();
+        Map<String, IntervalIndex<BAC>> libraries = chromosomes.get(chr);
+        if (libraries == null)
+            return window;
+        for (IntervalIndex<BAC> index : libraries.values()) {
+            index.query(open - maxLength - 1, close + maxLength, Integer.MIN_VALUE, row -> window.add(store, row));
+        }
+        return window;
+    }
+
+    /**
+     *
+     * @param chr - chromosome
+     * @param open - locus open position
+     * @param close - locus close position
+     * @return - number of candidate bacs, the size of findWindow without copying the rows
+     */
+    public int countWindow(String chr, int open, int close) {
+        Map<String, IntervalIndex<BAC>> libraries = chromosomes.get(chr);
+        if (libraries == null)
+            return 0;
+        int[] count = new int[1];
+        for (IntervalIndex<BAC> index : libraries.values()) {
+            index.query(open - maxLength - 1, close + maxLength, Integer.MIN_VALUE, row -> count[0]++);
+        }
+        return count[0];
+    }
+
+    /**
+     *
+     * @param chr - chromosome
+     * @param from - smallest start coordinate
+     * @param to - largest start coordinate
+     * @return - store of the bacs
+     */
+    @Override
+    public BACStore findStarts(String chr, int from, int to) {
+        BACStore bacs = new BACStore();
+        Map<String, IntervalIndex<BAC>> libraries = chromosomes.get(chr);
+        if (libraries == null)
+            return bacs;
+        for (IntervalIndex<BAC> index : libraries.values()) {
+            index.query(from - 1, to, Integer.MIN_VALUE, row -> bacs.add(store, row));
+        }
+        return bacs;
+    }
+
+    /**
+     *
+     * @return - largest bac length
+     */
+    @Override
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * copies the index outside of the heap, see BACStore.toDirect
+     * @return - index over a direct copy of the store and of the interval trees
+     */
+    public BACIndex toDirect() {
+        int[] segments = store.getSegments();
+        List<IntBuffer> maxEnds = new ArrayList<>();
+        for (IntBuffer tree : getMaxEnds(store, segments)) {
+            IntBuffer direct = ByteBuffer.allocateDirect(4 * tree.limit()).order(ByteOrder.nativeOrder()).asIntBuffer();
+            direct.put(tree);
+            direct.clear();
+            maxEnds.add(direct);
+        }
+        return new BACIndex(store.toDirect(), segments, maxEnds, maxLength);
+    }
+
+    /**
+     *
+     * @return - approximate memory of the store columns and interval trees in bytes, on the heap or not
+     */
+    public long getFootprint() {
+        return store.getFootprint() + store.getDirectFootprint() + treeBytes;
+    }
+
+    /**
+     *
+     * @return - sorted store of the indexed bacs
+     */
+    public BACStore getStore() {
+        return store;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import org.nyumc.isg.lims.common.DataSource;
+import org.nyumc.isg.lims.common.LimsException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Registry of in-memory BAC indexes keyed by bac library table, i.e. by organism and source of the locus.
+ * An index is loaded the first time a locus of its table is searched and is kept until the memory of all
+ * loaded indexes exceeds the budget, then indexes are evicted in least recently used order. The index in
+ * use by the request which loaded it is never evicted, so an index larger than the budget is still served.
+ * Evicted indexes stay valid for searches which already hold them. Concurrent requests for the same table
+ * wait for a single load
+ */
+public class BACIndexRegistry {
+    /**
+     * Loader of the index of a bac library table
+     */
+    public interface Loader {
+        /**
+         *
+         * @param table - database table (bac library) name
+         * @return - index of the table
+         * @throws LimsException - Lims exception
+         * @throws SQLException - SQL exception
+         * @throws IOException - IO exception
+         */
+        BACIndex load(String table) throws LimsException, SQLException, IOException;
+    }
+
+    private final long maxBytes;
+    private final Loader loader;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long footprint;
+    private long loads;
+    private long evictions;
+
+    /**
+     * Constructor, indexes are loaded from the database
+     * @param maxBytes - memory budget of the loaded indexes in bytes
+     */
+    public BACIndexRegistry(long maxBytes) {
+        this(maxBytes, database());
+    }
+
+    /**
+     * Constructor
+     * @param maxBytes - memory budget of the loaded indexes in bytes, see BACIndex.getFootprint
+     * @param loader - loader of the indexes
+     */
+    public BACIndexRegistry(long maxBytes, Loader loader) {
+        this.maxBytes = maxBytes;
+        this.loader = loader;
+    }
+
+    /**
+     *
+     * @return - loader which reads the whole table from the database
+     */
+    public static Loader database() {
+        return table -> {
+            try (Connection connection = DataSource.getInstance().getConnection()) {
+                return BACIndex.load(connection, table);
+            }
+        };
+    }
+
+    /**
+     *
+     * @param directory - directory of library files named after their tables, e.g. bac_hg38.bin
+     * @return - loader which maps the library file of the table and reads the database if there is none
+     */
+    public static Loader files(Path directory) {
+        Loader database = database();
+        return table -> {
+            Path file = directory.resolve(table + ".bin");
+            return Files.isRegularFile(file) ? BACLibraryFile.open(file) : database.load(table);
+        };
+    }
+
+    /**
+     *
+     * @param loader - loader of the indexes
+     * @return - loader which copies the loaded indexes outside of the heap, see BACIndex.toDirect
+     */
+    public static Loader direct(Loader loader) {
+        return table -> loader.load(table).toDirect();
+    }
+
+    /**
+     *
+     * @param locus - locus of interest
+     * @return - index of the bac library of the locus organism and source
+     * @throws LimsException - Lims exception
+     * @throws SQLException - SQL exception
+     * @throws IOException - IO exception
+     */
+    public BACIndex getIndex(LocusOfInterest locus) throws LimsException, SQLException, IOException {
+        return getIndex(BACTree.getTable(locus));
+    }
+
+    /**
+     *
+     * @param table - database table (bac library) name
+     * @return - index of the table, loaded by the calling thread if it is not registered
+     * @throws LimsException - Lims exception
+     * @throws SQLException - SQL exception
+     * @throws IOException - IO exception
+     */
+    public BACIndex getIndex(String table) throws LimsException, SQLException, IOException {
+        Entry entry;
+        boolean load = false;
+        synchronized (this) {
+            entry = entries.get(table);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(table, entry);
+                load = true;
+                loads++;
+            }
+        }
+        if (load) {
+            try {
+                BACIndex index = loader.load(table);
+                // completed under the lock, so every counted index is done
+                synchronized (this) {
+                    // an entry invalidated while loading is not registered, its load serves the waiting requests only
+                    if (entries.get(table) == entry) {
+                        entry.footprint = index.getFootprint();
+                        footprint += entry.footprint;
+                    }
+                    entry.index.complete(index);
+                    evict(table);
+                }
+            } catch (Throwable e) {
+                // e.g. OutOfMemoryError on a large library, the waiting requests must not block forever
+                synchronized (this) {
+                    entries.remove(table, entry);
+                }
+                entry.index.completeExceptionally(e);
+                if (e instanceof Error)
+                    throw (Error) e;
+            }
+        }
+        return entry.getIndex();
+    }
+
+    /**
+     *
+     * @param locus - locus of interest
+     * @param mode - tree construction mode
+     * @return - BAC tree covering the locus, built from the registered index
+     * @throws LimsException - Lims exception
+     * @throws SQLException - SQL exception
+     * @throws IOException - IO exception
+     */
+    public BACTree getTree(LocusOfInterest locus, BACTree.Mode mode) throws LimsException, SQLException, IOException {
+        return new BACTree(locus, getIndex(locus), mode);
+    }
+
+    /**
+     * evicts least recently used indexes until the loaded indexes fit the budget
+     * @param kept - table of the index just loaded, never evicted
+     */
+    private void evict(String kept) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (footprint > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            // indexes being loaded are not counted yet
+            if (eldest.getKey().equals(kept) || !eldest.getValue().index.isDone())
+                continue;
+            footprint -= eldest.getValue().footprint;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * drops the index of the table, e.g. after the table changed. An index being loaded is dropped as well,
+     * the next request loads the table again
+     * @param table - database table (bac library) name
+     */
+    public synchronized void invalidate(String table) {
+        Entry entry = entries.remove(table);
+        if (entry != null)
+            footprint -= entry.footprint;
+    }
+
+    /**
+     * drops all indexes, loaded or being loaded
+     */
+    public synchronized void clear() {
+        entries.clear();
+        footprint = 0;
+    }
+
+    /**
+     *
+     * @return - tables of the registered indexes, least recently used first
+     */
+    public synchronized List<String> getTables() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     *
+     * @return - memory of the loaded indexes in bytes
+     */
+    public synchronized long getFootprint() {
+        return footprint;
+    }
+
+    /**
+     *
+     * @return - number of index loads
+     */
+    public synchronized long getLoads() {
+        return loads;
+    }
+
+    /**
+     *
+     * @return - number of evicted indexes
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Registered index, loaded once
+     */
+    private static class Entry {
+        private final CompletableFuture<BACIndex> index = new CompletableFuture<>();
+        private long footprint;
+
+        BACIndex getIndex() throws LimsException, SQLException, IOException {
+            try {
+                return index.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted while loading a BAC index", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException)
+                    throw (SQLException) cause;
+                if (cause instanceof LimsException)
+                    throw (LimsException) cause;
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import org.nyumc.isg.lims.common.DataSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary BAC library file.
+ * A bac library table is exported offline into a file which holds the rows sorted by chromosome,
+ * library and start, the row range of every chromosome and library and the maximum end tree of
+ * every range, optionally followed by the tiling successor of every row (see TilingTable).
+ * The file is memory mapped and searched in place, so opening it does not read the
+ * rows and the pages are shared by all processes which map the same file.
+ * Layout, little endian, every section aligned to 4 bytes:
+ * magic, version, number of ranges, maximum bac length, store image size, tree size in ints,
+ * number of successors (version 2), range bounds (rows), tree bounds (ints), store image (see BACStore,
+ * with the BED columns from version 3), trees, successors
+ */
+public class BACLibraryFile {
+    private static final int MAGIC = 0x4C434142;  // "BACL"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 28;
+
+    private BACLibraryFile() {
+    }
+
+    /**
+     * exports the bac library table or BED file, e.g. BACLibraryFile --tiling bac_hg38 /data/bac_hg38.bin
+     * @param args - optional --tiling to precompute the tiling table, table name or BED file and file
+     * @throws Exception - Lims, SQL or IO exception
+     */
+    public static void main(String[] args) throws Exception {
+        boolean tiling = args.length == 3 && args[0].equals("--tiling");
+        if (args.length != (tiling ? 3 : 2)) {
+            System.err.println("usage: BACLibraryFile [--tiling] <table | BED file> <file>");
+            System.exit(1);
+        }
+        Path source = Paths.get(args[args.length - 2]);
+        Path file = Paths.get(args[args.length - 1]);
+        if (Files.isRegularFile(source)) {
+            write(BedLoader.load(source), file, tiling);
+        } else {
+            try (Connection connection = DataSource.getInstance().getConnection()) {
+                export(connection, args[args.length - 2], file, tiling);
+            }
+        }
+    }
+
+    /**
+     * exports the bac library table into the file
+     * @param connection - database connection
+     * @param table - database table (bac library) name
+     * @param file - file
+     * @throws SQLException - SQL exception
+     * @throws IOException - IO exception
+     */
+    public static void export(Connection connection, String table, Path file) throws SQLException, IOException {
+        export(connection, table, file, false);
+    }
+
+    /**
+     * exports the bac library table into the file
+     * @param connection - database connection
+     * @param table - database table (bac library) name
+     * @param file - file
+     * @param tiling - true, to precompute the tiling table
+     * @throws SQLException - SQL exception
+     * @throws IOException - IO exception
+     */
+    public static void export(Connection connection, String table, Path file, boolean tiling)
+            throws SQLException, IOException {
+        String sql = "select * from lims." + table;
+        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+            write(BACStore.read(ps), file, tiling);
+        }
+    }
+
+    /**
+     * writes the bacs into the file, the file is written next to the target and moved in place
+     * @param bacs - bacs
+     * @param file - file
+     * @throws IOException - IO exception
+     */
+    public static void write(BACStore bacs, Path file) throws IOException {
+        write(bacs, file, false);
+    }
+
+    /**
+     * writes the bacs into the file, the file is written next to the target and moved in place
+     * @param bacs - bacs
+     * @param file - file
+     * @param tiling - true, to precompute the tiling table
+     * @throws IOException - IO exception
+     */
+    public static void write(BACStore bacs, Path file, boolean tiling) throws IOException {
+        BACStore store = bacs.sort();
+        int[] segments = store.getSegments();
+        List<IntBuffer> maxEnds = BACIndex.getMaxEnds(store, segments);
+        int[] trees = new int[segments.length];
+        for (int i = 0; i + 1 < segments.length; i++) {
+            trees[i + 1] = trees[i] + maxEnds.get(i).limit();
+        }
+        IntBuffer successors = tiling ? TilingTable.getSuccessors(store, segments) : IntBuffer.allocate(0);
+        int imageSize = store.getImageSize();
+        long size = HEADER_SIZE + 8L * segments.length + imageSize + 4L * trees[trees.length - 1]
+                + 4L * successors.limit();
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("bac library is too large: " + size + " bytes");
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(segments.length - 1);
+            out.putInt(BACIndex.getMaxLength(store));
+            out.putInt(imageSize);
+            out.putInt(trees[trees.length - 1]);
+            out.putInt(successors.limit());
+            for (int bound : segments) {
+                out.putInt(bound);
+            }
+            for (int bound : trees) {
+                out.putInt(bound);
+            }
+            store.write(out);
+            for (IntBuffer tree : maxEnds) {
+                for (int node = 0; node < tree.limit(); node++) {
+                    out.putInt(tree.get(node));
+                }
+            }
+            for (int row = 0; row < successors.limit(); row++) {
+                out.putInt(successors.get(row));
+            }
+            out.force();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * maps the file
+     * @param file - file written by export or write
+     * @return - index over the mapped file
+     * @throws IOException - IO exception
+     */
+    public static BACIndex open(Path file) throws IOException {
+        return map(file).index;
+    }
+
+    /**
+     * maps the file and its tiling table
+     * @param file - file written by export or write with the tiling table
+     * @return - tiling table over the mapped file
+     * @throws IOException - IO exception
+     */
+    public static TilingTable openTilingTable(Path file) throws IOException {
+        Mapped mapped = map(file);
+        if (mapped.successors.limit() != mapped.index.getStore().size())
+            throw new IOException("bac library file has no tiling table: " + file);
+        return new TilingTable(mapped.index, mapped.successors);
+    }
+
+    /**
+     *
+     * @param file - file written by export or write
+     * @return - index and successors over the mapped file
+     * @throws IOException - IO exception
+     */
+    private static Mapped map(Path file) throws IOException {
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE - 4 || channel.size() > Integer.MAX_VALUE)
+                throw new IOException("not a bac library file: " + file);
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        if (in.getInt() != MAGIC)
+            throw new IOException("not a bac library file: " + file);
+        int version = in.getInt();
+        if (version < 1 || version > VERSION)
+            throw new IOException("unsupported bac library file version " + version + ": " + file);
+        int count = in.getInt();
+        int maxLength = in.getInt();
+        int imageSize = in.getInt();
+        int treeSize = in.getInt();
+        // version 1 files have no successors
+        int successorSize = version > 1 ? in.getInt() : 0;
+        int headerSize = version > 1 ? HEADER_SIZE : HEADER_SIZE - 4;
+        if (in.capacity() != headerSize + 8L * (count + 1) + imageSize + 4L * treeSize + 4L * successorSize)
+            throw new IOException("truncated bac library file: " + file);
+
+        int[] segments = new int[count + 1];
+        for (int i = 0; i <= count; i++) {
+            segments[i] = in.getInt();
+        }
+        int[] trees = new int[count + 1];
+        for (int i = 0; i <= count; i++) {
+            trees[i] = in.getInt();
+        }
+        // version 1 and 2 store images have no BED columns
+        BACStore store = BACStore.wrap(BACStore.slice(in, imageSize), version > 2);
+        IntBuffer nodes = BACStore.slice(in, 4 * treeSize).asIntBuffer();
+        List<IntBuffer> maxEnds = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.position(trees[i]);
+            nodes.limit(trees[i + 1]);
+            maxEnds.add(nodes.slice());
+            nodes.clear();
+        }
+        IntBuffer successors = BACStore.slice(in, 4 * successorSize).asIntBuffer();
+        return new Mapped(new BACIndex(store, segments, maxEnds, maxLength), successors);
+    }
+
+    /**
+     * Index and tiling successors of a mapped file
+     */
+    private static class Mapped {
+        private final BACIndex index;
+        private final IntBuffer successors;
+
+        Mapped(BACIndex index, IntBuffer successors) {
+            this.index = index;
+            this.successors = successors;
+        }
+    }
+}
@@ -3,9 +3,11 @@
  */
 
 package org.nyumc.isg.lims.objects;
+import com.google.gson.stream.JsonWriter;
 import org.apache.commons.lang3.StringUtils;
 import org.nyumc.isg.lims.common.NaryNode;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -78,6 +80,17 @@ public class BACNode implements NaryNode {
         return StringUtils.EMPTY;
     }
 
+    /**
+     * writes embedded bac to the stream, nothing for the root node
+     * @param writer - json writer
+     * @throws IOException - IO exception
+     */
+    @Override
+    public void toJson(JsonWriter writer) throws IOException {
+        if (bac != null)
+            bac.toJson(writer);
+    }
+
     /**
      *
      * @return string representation of the node
@@ -0,0 +1,57 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Source of BACs for the tree search.
+ * Answers the four query shapes of the search:
+ * 1) root, start != end - single bacs that cover [start, end] completely
+ * 2) root, start == end - single bacs that overlap start
+ * 3) parent, start == end - bacs of the parent library that continue past the parent start/end
+ * 4) parent, start != end - bacs of the parent library that continue the parent and reach end
+ */
+public interface BACSource {
+    /**
+     *
+     * @param parent - parent bac, null for the root of the tree
+     * @param chr - chromosome
+     * @param start - start coordinate of the region
+     * @param end - end coordinate of the region
+     * @return - list of bacs that can be attached to the parent
+     * @throws SQLException - SQL exception
+     */
+    List<BAC> findBACs(BAC parent, String chr, int start, int end) throws SQLException;
+
+    /**
+     * finds every bac the search of the locus can reach: bacs starting within the locus window
+     * padded on both sides by the largest bac length of the library
+     * @param chr - chromosome
+     * @param open - locus open position
+     * @param close - locus close position
+     * @return - store of candidate bacs
+     * @throws SQLException - SQL exception
+     */
+    BACStore findWindow(String chr, int open, int close) throws SQLException;
+
+    /**
+     * finds the bacs starting within [from, to], e.g. the flanks by which a locus window grows
+     * @param chr - chromosome
+     * @param from - smallest start coordinate
+     * @param to - largest start coordinate
+     * @return - store of the bacs
+     * @throws SQLException - SQL exception
+     */
+    BACStore findStarts(String chr, int from, int to) throws SQLException;
+
+    /**
+     *
+     * @return - largest bac length, the padding of a locus window
+     * @throws SQLException - SQL exception
+     */
+    int getMaxLength() throws SQLException;
+}
@@ -0,0 +1,827 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import org.nyumc.isg.lims.common.Rangeable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Columnar BAC store.
+ * Coordinates and scores are kept in primitive columns, chromosome, library prefix and strand are
+ * dictionary encoded and names are packed into a single byte arena. The BED columns follow: bin and reserved
+ * are dictionary encoded, block sizes and chrom starts are packed into a second arena. BAC objects returned
+ * by getBAC are lightweight views which read their row on access.
+ * Columns are nio buffers, so a store can be a view over a serialized image, e.g. a memory-mapped file
+ * or a direct buffer outside of the heap (see toDirect). Such a store is copied to the heap on the first add.
+ * A Cursor walks the rows as a single reusable Rangeable, so iterating a store allocates nothing
+ */
+public class BACStore {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int size;
+    private IntBuffer starts = IntBuffer.allocate(INITIAL_CAPACITY);
+    private IntBuffer ends = IntBuffer.allocate(INITIAL_CAPACITY);
+    private IntBuffer scores = IntBuffer.allocate(INITIAL_CAPACITY);
+    private IntBuffer thickStarts = IntBuffer.allocate(INITIAL_CAPACITY);
+    private IntBuffer thickEnds = IntBuffer.allocate(INITIAL_CAPACITY);
+    private IntBuffer chromosomeIds = IntBuffer.allocate(INITIAL_CAPACITY);
+    private ShortBuffer libraryIds = ShortBuffer.allocate(INITIAL_CAPACITY);
+    private ByteBuffer strandIds = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private IntBuffer nameOffsets = IntBuffer.allocate(INITIAL_CAPACITY + 1);
+    private ByteBuffer names = ByteBuffer.allocate(16 * INITIAL_CAPACITY);
+    // BED columns, null for a store wrapped from an image without them
+    private IntBuffer binIds = IntBuffer.allocate(INITIAL_CAPACITY);
+    private IntBuffer reservedIds = IntBuffer.allocate(INITIAL_CAPACITY);
+    private IntBuffer blockCounts = IntBuffer.allocate(INITIAL_CAPACITY);
+    // bit 0: block sizes are null, bit 1: chrom starts are null
+    private ByteBuffer bedNulls = ByteBuffer.allocate(INITIAL_CAPACITY);
+    // block sizes and chrom starts of row r are texts 2r and 2r + 1
+    private IntBuffer textOffsets = IntBuffer.allocate(2 * INITIAL_CAPACITY + 1);
+    private ByteBuffer texts = ByteBuffer.allocate(16 * INITIAL_CAPACITY);
+
+    private final Dictionary chromosomes = new Dictionary(Integer.MAX_VALUE);
+    private final Dictionary libraries = new Dictionary(Short.MAX_VALUE);
+    private final Dictionary strands = new Dictionary(Byte.MAX_VALUE);
+    private final Dictionary bins = new Dictionary(Integer.MAX_VALUE);
+    private final Dictionary reserveds = new Dictionary(Integer.MAX_VALUE);
+    // first three ascii bytes of a name packed into an int and the library id, saves decoding names
+    private final int[] libraryKeys = new int[64];
+    private final int[] libraryKeyIds = new int[64];
+    private int libraryKeyCount;
+
+    /**
+     * Default constructor, empty store
+     */
+    public BACStore() {
+    }
+
+    /**
+     * Constructor
+     * @param bacs - bacs to store
+     */
+    public BACStore(Collection<BAC> bacs) {
+        for (BAC bac : bacs) {
+            add(bac);
+        }
+    }
+
+    /**
+     * reads all rows returned by the statement
+     * @param ps - prepared statement
+     * @return - store of the bacs returned by the statement
+     * @throws SQLException - SQL exception
+     */
+    public static BACStore read(PreparedStatement ps) throws SQLException {
+        BACStore store = new BACStore();
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                store.add(rs);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * adds current row of the result set
+     * @param rs - SQL result set
+     * @throws SQLException - SQL exception
+     */
+    public void add(ResultSet rs) throws SQLException {
+        byte[] name = rs.getString("name").getBytes(StandardCharsets.UTF_8);
+        add(ByteBuffer.wrap(name), 0, name.length, rs.getString("chromosome"), rs.getInt("start_loc"),
+                rs.getInt("end_loc"), rs.getInt("score"), rs.getString("strand"), rs.getInt("thick_start"),
+                rs.getInt("thick_end"));
+        setBed(size - 1, rs.getString("bin"), rs.getString("reserved"), rs.getInt("block_count"),
+                rs.getString("block_size"), rs.getString("chrom_starts"));
+    }
+
+    /**
+     * adds all columns of the bac
+     * @param bac - bac
+     */
+    public void add(BAC bac) {
+        add(bac.getName(), bac.getChromosome(), bac.getStart(), bac.getEnd(), bac.getScore(),
+                bac.getStrand(), bac.getThickStart(), bac.getThickEnd());
+        setBed(size - 1, bac.getBin(), bac.getReserved(), bac.getBlockCount(), bac.getBlockSize(),
+                bac.getChromStarts());
+    }
+
+    /**
+     * copies a row of another store
+     * @param other - other store
+     * @param row - row of the other store
+     */
+    public void add(BACStore other, int row) {
+        int nameOffset = other.nameOffsets.get(row);
+        add(other.names, nameOffset, other.nameOffsets.get(row + 1) - nameOffset, other.getChromosome(row),
+                other.getStart(row), other.getEnd(row), other.getScore(row),
+                other.getStrand(row), other.getThickStart(row), other.getThickEnd(row));
+        if (other.binIds != null)
+            setBed(size - 1, other.getBin(row), other.getReserved(row), other.getBlockCount(row),
+                    other.getBlockSize(row), other.getChromStarts(row));
+    }
+
+    /**
+     * copies all rows of another store
+     * @param other - other store
+     */
+    public void addAll(BACStore other) {
+        for (int row = 0; row < other.size(); row++) {
+            add(other, row);
+        }
+    }
+
+    /**
+     *
+     * @param name - bac name
+     * @param chromosome - chromosome
+     * @param start - start coordinate
+     * @param end - end coordinate
+     * @param score - score value
+     * @param strand - strand (direction)
+     * @param thickStart - thick start coordinate
+     * @param thickEnd - thick end coordinate
+     */
+    public void add(String name, String chromosome, int start, int end, int score, String strand,
+                    int thickStart, int thickEnd) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        add(ByteBuffer.wrap(nameBytes), 0, nameBytes.length, chromosome, start, end, score, strand,
+                thickStart, thickEnd);
+    }
+
+    /**
+     * adds a row whose name is given as UTF-8 bytes of a buffer, e.g. a field of a file being parsed
+     * @param name - buffer with the bac name
+     * @param offset - offset of the name in the buffer
+     * @param length - length of the name in bytes
+     * @param chromosome - chromosome
+     * @param start - start coordinate
+     * @param end - end coordinate
+     * @param score - score value
+     * @param strand - strand (direction)
+     * @param thickStart - thick start coordinate
+     * @param thickEnd - thick end coordinate
+     */
+    void add(ByteBuffer name, int offset, int length, String chromosome, int start, int end, int score,
+             String strand, int thickStart, int thickEnd) {
+        if (size == starts.capacity())
+            grow();
+        int nameOffset = nameOffsets.get(size);
+        if (nameOffset + length > names.capacity())
+            names = grow(names, Math.max(2 * names.capacity(), nameOffset + length));
+        int libraryId = getLibraryId(name, offset, length);
+        ByteBuffer source = name.duplicate();
+        source.clear();
+        source.position(offset);
+        source.limit(offset + length);
+        ByteBuffer target = names.duplicate();
+        target.clear();
+        target.position(nameOffset);
+        target.put(source);
+
+        starts.put(size, start);
+        ends.put(size, end);
+        scores.put(size, score);
+        thickStarts.put(size, thickStart);
+        thickEnds.put(size, thickEnd);
+        chromosomeIds.put(size, chromosomes.encode(chromosome));
+        libraryIds.put(size, (short) libraryId);
+        strandIds.put(size, (byte) strands.encode(strand));
+        nameOffsets.put(size + 1, nameOffset + length);
+        binIds.put(size, -1);
+        reservedIds.put(size, -1);
+        blockCounts.put(size, 0);
+        bedNulls.put(size, (byte) 3);
+        int textOffset = textOffsets.get(2 * size);
+        textOffsets.put(2 * size + 1, textOffset);
+        textOffsets.put(2 * size + 2, textOffset);
+        size++;
+    }
+
+    /**
+     * sets the BED columns of the last row
+     * @param row - last row
+     * @param bin - bin id
+     * @param reserved - reserved
+     * @param blockCount - block count
+     * @param blockSize - block sizes
+     * @param chromStarts - chrom starts
+     */
+    private void setBed(int row, String bin, String reserved, int blockCount, String blockSize,
+                        String chromStarts) {
+        binIds.put(row, bins.encode(bin));
+        reservedIds.put(row, reserveds.encode(reserved));
+        blockCounts.put(row, blockCount);
+        bedNulls.put(row, (byte) ((blockSize == null ? 1 : 0) | (chromStarts == null ? 2 : 0)));
+        byte[] sizeBytes = blockSize == null ? new byte[0] : blockSize.getBytes(StandardCharsets.UTF_8);
+        byte[] startBytes = chromStarts == null ? new byte[0] : chromStarts.getBytes(StandardCharsets.UTF_8);
+        int offset = textOffsets.get(2 * row);
+        int length = sizeBytes.length + startBytes.length;
+        if (offset + length > texts.capacity())
+            texts = grow(texts, Math.max(2 * texts.capacity(), offset + length));
+        ByteBuffer target = texts.duplicate();
+        target.clear();
+        target.position(offset);
+        target.put(sizeBytes);
+        target.put(startBytes);
+        textOffsets.put(2 * row + 1, offset + sizeBytes.length);
+        textOffsets.put(2 * row + 2, offset + length);
+    }
+
+    /**
+     *
+     * @param name - buffer with the bac name
+     * @param offset - offset of the name in the buffer
+     * @param length - length of the name in bytes
+     * @return - id of the library prefix of the name
+     */
+    private int getLibraryId(ByteBuffer name, int offset, int length) {
+        if (length >= 3) {
+            int key = (name.get(offset) & 0xff) << 16 | (name.get(offset + 1) & 0xff) << 8 | name.get(offset + 2) & 0xff;
+            if ((key & 0x808080) == 0) {
+                for (int i = 0; i < libraryKeyCount; i++) {
+                    if (libraryKeys[i] == key)
+                        return libraryKeyIds[i];
+                }
+                int id = libraries.encode(decode(name, offset, 3));
+                if (libraryKeyCount < libraryKeys.length) {
+                    libraryKeys[libraryKeyCount] = key;
+                    libraryKeyIds[libraryKeyCount++] = id;
+                }
+                return id;
+            }
+        }
+        return libraries.encode(decode(name, offset, length).substring(0, 3));
+    }
+
+    private void grow() {
+        int capacity = Math.max(INITIAL_CAPACITY, 2 * starts.capacity());
+        starts = grow(starts, capacity);
+        ends = grow(ends, capacity);
+        scores = grow(scores, capacity);
+        thickStarts = grow(thickStarts, capacity);
+        thickEnds = grow(thickEnds, capacity);
+        chromosomeIds = grow(chromosomeIds, capacity);
+        libraryIds = grow(libraryIds, capacity);
+        strandIds = grow(strandIds, capacity);
+        nameOffsets = grow(nameOffsets, capacity + 1);
+        if (binIds == null) {
+            // an image without BED columns: the rows so far have none
+            binIds = IntBuffer.allocate(capacity);
+            reservedIds = IntBuffer.allocate(capacity);
+            blockCounts = IntBuffer.allocate(capacity);
+            bedNulls = ByteBuffer.allocate(capacity);
+            textOffsets = IntBuffer.allocate(2 * capacity + 1);
+            texts = ByteBuffer.allocate(16 * INITIAL_CAPACITY);
+            for (int row = 0; row < size; row++) {
+                binIds.put(row, -1);
+                reservedIds.put(row, -1);
+                bedNulls.put(row, (byte) 3);
+            }
+        } else {
+            binIds = grow(binIds, capacity);
+            reservedIds = grow(reservedIds, capacity);
+            blockCounts = grow(blockCounts, capacity);
+            bedNulls = grow(bedNulls, capacity);
+            textOffsets = grow(textOffsets, 2 * capacity + 1);
+        }
+    }
+
+    /**
+     *
+     * @param column - column
+     * @param capacity - new capacity
+     * @return - heap copy of the column with the new capacity
+     */
+    private static IntBuffer grow(IntBuffer column, int capacity) {
+        IntBuffer source = column.duplicate();
+        source.clear();
+        IntBuffer grown = IntBuffer.allocate(capacity);
+        grown.put(source);
+        grown.clear();
+        return grown;
+    }
+
+    private static ShortBuffer grow(ShortBuffer column, int capacity) {
+        ShortBuffer source = column.duplicate();
+        source.clear();
+        ShortBuffer grown = ShortBuffer.allocate(capacity);
+        grown.put(source);
+        grown.clear();
+        return grown;
+    }
+
+    private static ByteBuffer grow(ByteBuffer column, int capacity) {
+        ByteBuffer source = column.duplicate();
+        source.clear();
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        grown.put(source);
+        grown.clear();
+        return grown;
+    }
+
+    /**
+     *
+     * @return - copy of the store sorted by chromosome, library, start and end
+     */
+    public BACStore sort() {
+        Integer[] order = new Integer[size];
+        for (int row = 0; row < size; row++) {
+            order[row] = row;
+        }
+        Arrays.sort(order, Comparator.<Integer, String>comparing(this::getChromosome,
+                        Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparing(this::getLibrary)
+                .thenComparingInt(this::getStart)
+                .thenComparingInt(this::getEnd));
+        BACStore sorted = new BACStore();
+        for (int row : order) {
+            sorted.add(this, row);
+        }
+        return sorted;
+    }
+
+    /**
+     * rows of the sorted store grouped by chromosome and library
+     * @return - first row of every group followed by the number of rows
+     */
+    int[] getSegments() {
+        List<Integer> bounds = new ArrayList<>();
+        for (int row = 0; row < size; row++) {
+            if (row == 0 || chromosomeIds.get(row) != chromosomeIds.get(row - 1)
+                    || libraryIds.get(row) != libraryIds.get(row - 1))
+                bounds.add(row);
+        }
+        bounds.add(size);
+        int[] segments = new int[bounds.size()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = bounds.get(i);
+        }
+        return segments;
+    }
+
+    /**
+     *
+     * @return - number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @param row - row
+     * @return - lightweight bac view of the row
+     */
+    public BAC getBAC(int row) {
+        return new BAC(this, row);
+    }
+
+    /**
+     *
+     * @return - bac views of all rows
+     */
+    public List<BAC> getBACs() {
+        List<BAC> bacs = new ArrayList<>(size);
+        for (int row = 0; row < size; row++) {
+            bacs.add(getBAC(row));
+        }
+        return bacs;
+    }
+
+    /**
+     *
+     * @return - reusable view positioned before the first row
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     *
+     * @return - approximate heap footprint of the columns in bytes, columns outside of the heap are not counted
+     */
+    public long getFootprint() {
+        if (starts.isDirect())
+            return 0;
+        return 40L * starts.capacity() + 4L * nameOffsets.capacity() + names.capacity()
+                + 4L * textOffsets.capacity() + texts.capacity();
+    }
+
+    /**
+     *
+     * @return - size of the columns outside of the heap in bytes, direct or mapped, 0 for a heap store
+     */
+    public long getDirectFootprint() {
+        if (!starts.isDirect())
+            return 0;
+        return getImageSize();
+    }
+
+    /**
+     * copies the store outside of the heap: the image is written to a direct buffer and the columns are
+     * views of it, so the rows are neither traced by the garbage collector nor counted by getFootprint.
+     * The buffer is released when the store becomes unreachable
+     * @return - store over a direct buffer
+     */
+    public BACStore toDirect() {
+        ByteBuffer image = ByteBuffer.allocateDirect(getImageSize());
+        write(image);
+        image.flip();
+        return wrap(image);
+    }
+
+    IntBuffer getStarts() {
+        return starts;
+    }
+
+    IntBuffer getEnds() {
+        return ends;
+    }
+
+    String getName(int row) {
+        int offset = nameOffsets.get(row);
+        return decode(names, offset, nameOffsets.get(row + 1) - offset);
+    }
+
+    /**
+     *
+     * @param buffer - buffer
+     * @param offset - offset of the string in the buffer
+     * @param length - length of the string in bytes
+     * @return - UTF-8 string
+     */
+    static String decode(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray())
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.clear();
+        source.position(offset);
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    String getChromosome(int row) {
+        return chromosomes.decode(chromosomeIds.get(row));
+    }
+
+    String getLibrary(int row) {
+        return libraries.decode(libraryIds.get(row));
+    }
+
+    String getStrand(int row) {
+        return strands.decode(strandIds.get(row));
+    }
+
+    int getStart(int row) {
+        return starts.get(row);
+    }
+
+    int getEnd(int row) {
+        return ends.get(row);
+    }
+
+    int getScore(int row) {
+        return scores.get(row);
+    }
+
+    int getThickStart(int row) {
+        return thickStarts.get(row);
+    }
+
+    int getThickEnd(int row) {
+        return thickEnds.get(row);
+    }
+
+    String getBin(int row) {
+        return binIds == null ? null : bins.decode(binIds.get(row));
+    }
+
+    String getReserved(int row) {
+        return reservedIds == null ? null : reserveds.decode(reservedIds.get(row));
+    }
+
+    int getBlockCount(int row) {
+        return blockCounts == null ? 0 : blockCounts.get(row);
+    }
+
+    String getBlockSize(int row) {
+        return getText(row, 0);
+    }
+
+    String getChromStarts(int row) {
+        return getText(row, 1);
+    }
+
+    /**
+     *
+     * @param row - row
+     * @param column - 0 for block sizes, 1 for chrom starts
+     * @return - text of the row
+     */
+    private String getText(int row, int column) {
+        if (bedNulls == null || (bedNulls.get(row) & (1 << column)) != 0)
+            return null;
+        int offset = textOffsets.get(2 * row + column);
+        return decode(texts, offset, textOffsets.get(2 * row + column + 1) - offset);
+    }
+
+    /**
+     *
+     * @return - size of the serialized image of the store in bytes
+     */
+    int getImageSize() {
+        int nameBytes = nameOffsets.get(size);
+        int textBytes = textOffsets == null ? 0 : textOffsets.get(2 * size);
+        return 8 + chromosomes.getImageSize() + libraries.getImageSize() + strands.getImageSize()
+                + 4 * 6 * size + align(2 * size) + align(size) + 4 * (size + 1) + align(nameBytes)
+                + 4 + bins.getImageSize() + reserveds.getImageSize() + 4 * 3 * size + align(size)
+                + 4 * (2 * size + 1) + align(textBytes);
+    }
+
+    /**
+     * writes the serialized image of the store: row count, dictionaries and columns, then the BED
+     * dictionaries and columns, little endian with every section aligned to 4 bytes
+     * @param out - buffer with at least getImageSize bytes remaining
+     */
+    void write(ByteBuffer out) {
+        out.order(ByteOrder.LITTLE_ENDIAN);
+        int nameBytes = nameOffsets.get(size);
+        out.putInt(size);
+        out.putInt(nameBytes);
+        chromosomes.write(out);
+        libraries.write(out);
+        strands.write(out);
+        for (IntBuffer column : Arrays.asList(starts, ends, scores, thickStarts, thickEnds, chromosomeIds)) {
+            for (int row = 0; row < size; row++) {
+                out.putInt(column.get(row));
+            }
+        }
+        for (int row = 0; row < size; row++) {
+            out.putShort(libraryIds.get(row));
+        }
+        pad(out, 2 * size);
+        for (int row = 0; row < size; row++) {
+            out.put(strandIds.get(row));
+        }
+        pad(out, size);
+        for (int row = 0; row <= size; row++) {
+            out.putInt(nameOffsets.get(row));
+        }
+        ByteBuffer source = names.duplicate();
+        source.position(0);
+        source.limit(nameBytes);
+        out.put(source);
+        pad(out, nameBytes);
+
+        // a store without BED columns is written with null ones
+        boolean bed = binIds != null;
+        int textBytes = bed ? textOffsets.get(2 * size) : 0;
+        out.putInt(textBytes);
+        bins.write(out);
+        reserveds.write(out);
+        for (IntBuffer column : Arrays.asList(binIds, reservedIds)) {
+            for (int row = 0; row < size; row++) {
+                out.putInt(bed ? column.get(row) : -1);
+            }
+        }
+        for (int row = 0; row < size; row++) {
+            out.putInt(bed ? blockCounts.get(row) : 0);
+        }
+        for (int row = 0; row < size; row++) {
+            out.put(bed ? bedNulls.get(row) : 3);
+        }
+        pad(out, size);
+        for (int row = 0; row <= 2 * size; row++) {
+            out.putInt(bed ? textOffsets.get(row) : 0);
+        }
+        if (!bed)
+            return;
+        source = texts.duplicate();
+        source.position(0);
+        source.limit(textBytes);
+        out.put(source);
+        pad(out, textBytes);
+    }
+
+    /**
+     * store over a serialized image, the columns are views of the buffer and nothing is copied
+     * @param in - buffer positioned at the image, the position is moved past the image
+     * @return - store
+     */
+    static BACStore wrap(ByteBuffer in) {
+        return wrap(in, true);
+    }
+
+    /**
+     * store over a serialized image, the columns are views of the buffer and nothing is copied
+     * @param in - buffer positioned at the image, the position is moved past the image
+     * @param bed - false for an image without the BED columns, e.g. of a version 1 or 2 library file
+     * @return - store
+     */
+    static BACStore wrap(ByteBuffer in, boolean bed) {
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        BACStore store = new BACStore();
+        store.size = in.getInt();
+        int nameBytes = in.getInt();
+        store.chromosomes.read(in);
+        store.libraries.read(in);
+        store.strands.read(in);
+        int size = store.size;
+        store.starts = slice(in, 4 * size).asIntBuffer();
+        store.ends = slice(in, 4 * size).asIntBuffer();
+        store.scores = slice(in, 4 * size).asIntBuffer();
+        store.thickStarts = slice(in, 4 * size).asIntBuffer();
+        store.thickEnds = slice(in, 4 * size).asIntBuffer();
+        store.chromosomeIds = slice(in, 4 * size).asIntBuffer();
+        store.libraryIds = slice(in, 2 * size).asShortBuffer();
+        store.strandIds = slice(in, size);
+        store.nameOffsets = slice(in, 4 * (size + 1)).asIntBuffer();
+        store.names = slice(in, nameBytes);
+        if (!bed) {
+            store.binIds = null;
+            store.reservedIds = null;
+            store.blockCounts = null;
+            store.bedNulls = null;
+            store.textOffsets = null;
+            store.texts = null;
+            return store;
+        }
+        int textBytes = in.getInt();
+        store.bins.read(in);
+        store.reserveds.read(in);
+        store.binIds = slice(in, 4 * size).asIntBuffer();
+        store.reservedIds = slice(in, 4 * size).asIntBuffer();
+        store.blockCounts = slice(in, 4 * size).asIntBuffer();
+        store.bedNulls = slice(in, size);
+        store.textOffsets = slice(in, 4 * (2 * size + 1)).asIntBuffer();
+        store.texts = slice(in, textBytes);
+        return store;
+    }
+
+    /**
+     *
+     * @param in - buffer
+     * @param length - length of the section in bytes
+     * @return - little endian view of the section at the buffer position, the position is moved past the aligned section
+     */
+    static ByteBuffer slice(ByteBuffer in, int length) {
+        ByteBuffer section = in.slice();
+        section.limit(length);
+        in.position(in.position() + align(length));
+        return section.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     *
+     * @param length - length in bytes
+     * @return - length rounded up to a multiple of 4
+     */
+    static int align(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static void pad(ByteBuffer out, int length) {
+        for (int i = length; i < align(length); i++) {
+            out.put((byte) 0);
+        }
+    }
+
+    /**
+     * Reusable view over the rows of the store, moving the cursor does not allocate
+     */
+    public class Cursor implements Rangeable {
+        private int row = -1;
+
+        /**
+         * moves the cursor to the next row
+         * @return - true, if the cursor is at a row
+         */
+        public boolean next() {
+            return ++row < size;
+        }
+
+        /**
+         *
+         * @param row - row
+         * @return - the cursor, at the row
+         */
+        public Cursor moveTo(int row) {
+            this.row = row;
+            return this;
+        }
+
+        /**
+         *
+         * @return - current row
+         */
+        public int getRow() {
+            return row;
+        }
+
+        @Override
+        public int getStart() {
+            return starts.get(row);
+        }
+
+        @Override
+        public int getEnd() {
+            return ends.get(row);
+        }
+
+        /**
+         *
+         * @return - chromosome of the row
+         */
+        public String getChromosome() {
+            return BACStore.this.getChromosome(row);
+        }
+
+        /**
+         *
+         * @return - library of the row
+         */
+        public String getLibrary() {
+            return BACStore.this.getLibrary(row);
+        }
+
+        /**
+         *
+         * @return - bac view of the row, a new object
+         */
+        public BAC getBAC() {
+            return BACStore.this.getBAC(row);
+        }
+    }
+
+    /**
+     * String dictionary, null is encoded as -1
+     */
+    private static class Dictionary {
+        private final int capacity;
+        private final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        Dictionary(int capacity) {
+            this.capacity = capacity;
+        }
+
+        int encode(String value) {
+            if (value == null)
+                return -1;
+            Integer id = ids.get(value);
+            if (id == null) {
+                if (values.size() == capacity)
+                    throw new IllegalStateException("too many distinct values: " + capacity);
+                id = values.size();
+                values.add(value);
+                ids.put(value, id);
+            }
+            return id;
+        }
+
+        String decode(int id) {
+            return id < 0 ? null : values.get(id);
+        }
+
+        int getImageSize() {
+            int length = 4;
+            for (String value : values) {
+                length += 4 + align(value.getBytes(StandardCharsets.UTF_8).length);
+            }
+            return length;
+        }
+
+        void write(ByteBuffer out) {
+            out.putInt(values.size());
+            for (String value : values) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.putInt(bytes.length);
+                out.put(bytes);
+                pad(out, bytes.length);
+            }
+        }
+
+        void read(ByteBuffer in) {
+            int count = in.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[in.getInt()];
+                in.get(bytes);
+                in.position(in.position() + align(bytes.length) - bytes.length);
+                encode(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
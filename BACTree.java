@@ -6,14 +6,143 @@ package org.nyumc.isg.lims.objects;
 
 import org.nyumc.isg.lims.common.*;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.List;
+import java.sql.SQLTimeoutException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinTask;
 
 public class BACTree  implements Jsonable{
+    /**
+     * Tree construction mode
+     */
+    public enum Mode {
+        /** exhaustive search, queries the source for every node of the tree */
+        PER_NODE,
+        /** exhaustive search over the locus window fetched from the source once */
+        LOCUS_WINDOW,
+        /** minimum bac count chains of every library over the locus window fetched from the source once,
+         * read from the precomputed table if the source is a TilingTable */
+        MIN_TILING,
+        /** exhaustive search run by the database as a single recursive query, paths are at most CTE_MAX_DEPTH bacs,
+         * sources other than SqlBACSource are searched per node */
+        RECURSIVE_CTE
+    }
+
+    /**
+     * maximum number of bacs in a path found in RECURSIVE_CTE mode
+     */
+    public static final int CTE_MAX_DEPTH = 256;
+
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    private static volatile MetricsRegistry metricsRegistry = MetricsRegistry.NOOP;
+
+    /**
+     * Continuation subproblem of the search: cover [bac end, close] with bacs of the bac library
+     * that start after the bac start. Table, chromosome and close are fixed within a search,
+     * so the bac placement identifies the subproblem and its subtree
+     */
+    private static class Subproblem {
+        private final String name;
+        private final int start;
+        private final int end;
+
+        Subproblem(BAC bac) {
+            this.name = bac.getName();
+            this.start = bac.getStart();
+            this.end = bac.getEnd();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof Subproblem) {
+                Subproblem subproblem = (Subproblem) other;
+                return start == subproblem.start && end == subproblem.end && name.equals(subproblem.name);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, start, end);
+        }
+    }
+
+    /**
+     * State of a single exhaustive search, a concurrent search expands several nodes at once
+     */
+    private static class Search {
+        private final BACSource source;
+        private final String chr;
+        private final SearchMetrics metrics;
+        private final SearchBudget budget;
+        private final Map<Subproblem, BACNode> memo;
+        private final Set<NaryNode> expanded;
+        private final boolean concurrent;
+        private long lookups;
+        private long bacs;
+        private volatile boolean partial;
+
+        Search(BACSource source, String chr, SearchMetrics metrics, SearchBudget budget, boolean concurrent) {
+            this.source = source;
+            this.chr = chr;
+            this.metrics = metrics;
+            this.budget = budget;
+            this.concurrent = concurrent;
+            this.memo = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+            this.expanded = Collections.newSetFromMap(concurrent
+                    ? Collections.synchronizedMap(new IdentityHashMap<>()) : new IdentityHashMap<>());
+        }
+
+        /**
+         *
+         * @param bacs - number of bacs returned by a lookup
+         * @param nanos - time spent in findChildren
+         */
+        synchronized void count(int bacs, long nanos) {
+            this.lookups++;
+            this.bacs += bacs;
+            if (metrics != null)
+                metrics.findChildrenNanos += nanos;
+        }
+
+        /**
+         *
+         * @return - true, if the budget has run out, the search is partial from then on
+         */
+        boolean isExhausted() {
+            if (!partial && budget != null && budget.isExhausted(memo.size()))
+                partial = true;
+            return partial;
+        }
+    }
+
     NaryTree<BACNode> tree;
+    private final MetricsRegistry registry = metricsRegistry;
+    private SearchMetrics metrics;
+    private long leafPaths;
+    private boolean partial;
+    // the locus, and for a reusable tree its candidate window and expanded subproblems to re-solve a nearby locus
+    private String chr;
+    private int open;
+    private int close;
+    private Mode mode;
+    private boolean reusable;
+    private BACStore window;
+    private int maxLength;
+    private Map<Subproblem, BACNode> memo;
+    private Set<NaryNode> expanded;
+
+    private BACTree() {
+    }
 
     /**
      * Constructor
@@ -22,153 +151,732 @@ public class BACTree  implements Jsonable{
      * @throws SQLException - SQL exception
      */
     public BACTree(LocusOfInterest locus) throws LimsException, SQLException{
-        BACNode root = getBACNode(locus);
-        tree = new NaryTree(root);
+        this(locus, Mode.MIN_TILING);
+    }
+
+    /**
+     * Constructor
+     * @param locus - locus of interest which needs to be covered by BAC (tree)
+     * @param source - source of bacs, e.g. in-memory BACIndex
+     * @throws LimsException - Lims Exception
+     * @throws SQLException - SQL exception
+     */
+    public BACTree(LocusOfInterest locus, BACSource source) throws LimsException, SQLException{
+        this(locus, source, Mode.MIN_TILING);
+    }
+
+    /**
+     * Constructor
+     * @param locus - locus of interest which needs to be covered by BAC (tree)
+     * @param mode - tree construction mode
+     * @throws LimsException - Lims Exception
+     * @throws SQLException - SQL exception
+     */
+    public BACTree(LocusOfInterest locus, Mode mode) throws LimsException, SQLException{
+        this(locus, mode, null);
+    }
+
+    /**
+     * Constructor
+     * @param locus - locus of interest which needs to be covered by BAC (tree)
+     * @param mode - tree construction mode
+     * @param budget - search budget, null for none
+     * @throws LimsException - Lims Exception
+     * @throws SQLException - SQL exception
+     */
+    public BACTree(LocusOfInterest locus, Mode mode, SearchBudget budget) throws LimsException, SQLException{
+        this(locus, mode, budget, false);
+    }
+
+    /**
+     * Constructor
+     * @param locus - locus of interest which needs to be covered by BAC (tree)
+     * @param mode - tree construction mode
+     * @param budget - search budget, null for none
+     * @param reusable - true to keep the candidate window and the search memo for re-solving a nearby locus,
+     *                 see BACTree(previous, locus), otherwise they are dropped after the build
+     * @throws LimsException - Lims Exception
+     * @throws SQLException - SQL exception
+     */
+    public BACTree(LocusOfInterest locus, Mode mode, SearchBudget budget, boolean reusable)
+            throws LimsException, SQLException{
+        this.reusable = reusable;
+        try (Connection connection = DataSource.getInstance().getConnection();
+             SqlBACSource source = new SqlBACSource(connection, getTable(locus))) {
+            tree = new NaryTree(build(locus.getChromosome(), locus.getOpenPosition(), locus.getClosePosition(),
+                    source, mode, budget, null));
+        }
+    }
+
+    /**
+     * Constructor
+     * @param locus - locus of interest which needs to be covered by BAC (tree)
+     * @param source - source of bacs, e.g. in-memory BACIndex
+     * @param mode - tree construction mode
+     * @throws LimsException - Lims Exception
+     * @throws SQLException - SQL exception
+     */
+    public BACTree(LocusOfInterest locus, BACSource source, Mode mode) throws LimsException, SQLException{
+        this(locus.getChromosome(), locus.getOpenPosition(), locus.getClosePosition(), source, mode);
+    }
+
+    /**
+     * Constructor
+     * @param chr - chromosome
+     * @param open - open position of the region which needs to be covered by BAC (tree)
+     * @param close - close position of the region
+     * @param source - source of bacs, e.g. in-memory BACIndex
+     * @param mode - tree construction mode
+     * @throws SQLException - SQL exception
+     */
+    public BACTree(String chr, int open, int close, BACSource source, Mode mode) throws SQLException{
+        this(chr, open, close, source, mode, null);
+    }
+
+    /**
+     * Constructor
+     * @param chr - chromosome
+     * @param open - open position of the region which needs to be covered by BAC (tree)
+     * @param close - close position of the region
+     * @param source - source of bacs, e.g. in-memory BACIndex
+     * @param mode - tree construction mode
+     * @param budget - search budget, null for none
+     * @throws SQLException - SQL exception
+     */
+    public BACTree(String chr, int open, int close, BACSource source, Mode mode, SearchBudget budget)
+            throws SQLException{
+        this(chr, open, close, source, mode, budget, false);
+    }
+
+    /**
+     * Constructor
+     * @param chr - chromosome
+     * @param open - open position of the region which needs to be covered by BAC (tree)
+     * @param close - close position of the region
+     * @param source - source of bacs, e.g. in-memory BACIndex
+     * @param mode - tree construction mode
+     * @param budget - search budget, null for none
+     * @param reusable - true to keep the candidate window and the search memo for re-solving a nearby locus,
+     *                 see BACTree(previous, open, close, source), otherwise they are dropped after the build
+     * @throws SQLException - SQL exception
+     */
+    public BACTree(String chr, int open, int close, BACSource source, Mode mode, SearchBudget budget,
+                   boolean reusable) throws SQLException{
+        this.reusable = reusable;
+        tree = new NaryTree(build(chr, open, close, source, mode, budget, null));
+    }
+
+    /**
+     * Constructor, re-solves the tree of a moved or resized locus without a search budget,
+     * see BACTree(previous, open, close, source, budget)
+     * @param previous - tree of a locus on the same chromosome, built from the same source
+     * @param open - new open position
+     * @param close - new close position
+     * @param source - source of bacs
+     * @throws SQLException - SQL exception
+     */
+    public BACTree(BACTree previous, int open, int close, BACSource source) throws SQLException{
+        this(previous, open, close, source, null);
+    }
+
+    /**
+     * Constructor, re-solves the tree of a moved or resized locus.
+     * The candidate window of the previous tree is reused and only its newly exposed flanks are fetched,
+     * padded by the same largest bac length, if the close position is unchanged the subtrees of the previous
+     * exhaustive search are reused as well, so only the root and the new continuations are expanded.
+     * Anything else, or a previous tree which is not reusable, is searched from scratch.
+     * The new tree is reusable if the previous one is
+     * @param previous - tree of a locus on the same chromosome, built from the same source
+     * @param open - new open position
+     * @param close - new close position
+     * @param source - source of bacs
+     * @param budget - search budget, null for none
+     * @throws SQLException - SQL exception
+     */
+    public BACTree(BACTree previous, int open, int close, BACSource source, SearchBudget budget)
+            throws SQLException{
+        reusable = previous.reusable;
+        tree = new NaryTree(build(previous.chr, open, close, source, previous.mode, budget, previous));
+    }
+
+    /**
+     * Constructor, re-solves the tree of a moved or resized locus without a search budget,
+     * see BACTree(previous, open, close, source, budget)
+     * @param previous - tree of a locus on the same chromosome and bac library
+     * @param locus - new locus of interest
+     * @throws LimsException - Lims Exception
+     * @throws SQLException - SQL exception
+     */
+    public BACTree(BACTree previous, LocusOfInterest locus) throws LimsException, SQLException{
+        this(previous, locus, null);
+    }
+
+    /**
+     * Constructor, re-solves the tree of a moved or resized locus, see BACTree(previous, open, close, source, budget)
+     * @param previous - tree of a locus on the same chromosome and bac library
+     * @param locus - new locus of interest
+     * @param budget - search budget, null for none
+     * @throws LimsException - Lims Exception
+     * @throws SQLException - SQL exception
+     */
+    public BACTree(BACTree previous, LocusOfInterest locus, SearchBudget budget) throws LimsException, SQLException{
+        reusable = previous.reusable;
+        try (Connection connection = DataSource.getInstance().getConnection();
+             SqlBACSource source = new SqlBACSource(connection, getTable(locus))) {
+            tree = new NaryTree(locus.getChromosome().equals(previous.chr)
+                    ? build(previous.chr, locus.getOpenPosition(), locus.getClosePosition(), source, previous.mode,
+                    budget, previous)
+                    : build(locus.getChromosome(), locus.getOpenPosition(), locus.getClosePosition(), source,
+                    previous.mode, budget, null));
+        }
+    }
+
+    /**
+     *
+     * @param chr - chromosome
+     * @param open - open position of the region
+     * @param close - close position of the region
+     * @param source - source of bacs
+     * @param mode - tree construction mode
+     * @param budget - search budget, null for none
+     * @param previous - tree whose window and subtrees can be reused, null for none
+     * @return - BAC node that is a root of the tree covering the region
+     * @throws SQLException - SQL exception
+     */
+    private BACNode build(String chr, int open, int close, BACSource source, Mode mode, SearchBudget budget,
+                          BACTree previous) throws SQLException {
+        this.chr = chr;
+        this.open = open;
+        this.close = close;
+        this.mode = mode;
+        SqlBACSource sqlSource = source instanceof SqlBACSource ? (SqlBACSource) source : null;
+        SearchBudget sourceBudget = sqlSource != null ? sqlSource.getBudget() : null;
+        // every query is bounded by the time remaining when it starts
+        if (sqlSource != null && budget != null)
+            sqlSource.setBudget(budget);
+        try {
+            return build(chr, open, close, source, mode, budget, previous, registry.isEnabled()
+                    ? new SearchMetrics(chr, open, close, mode) : null);
+        } catch (SQLTimeoutException e) {
+            if (budget == null)
+                throw e;
+            return getPartialRoot();
+        } finally {
+            if (sqlSource != null)
+                sqlSource.setBudget(sourceBudget);
+        }
+    }
+
+    /**
+     *
+     * @param chr - chromosome
+     * @param open - open position of the region
+     * @param close - close position of the region
+     * @param source - source of bacs
+     * @param mode - tree construction mode
+     * @param budget - search budget, null for none
+     * @param previous - tree whose window and subtrees can be reused, null for none
+     * @param metrics - metrics of the search, null if metrics are disabled
+     * @return - BAC node that is a root of the tree covering the region
+     * @throws SQLException - SQL exception
+     */
+    private BACNode build(String chr, int open, int close, BACSource source, Mode mode, SearchBudget budget,
+                          BACTree previous, SearchMetrics metrics) throws SQLException {
+        if (metrics == null)
+            return search(chr, open, close, source, mode, budget, previous, null);
+        this.metrics = metrics;
+        long started = System.nanoTime();
+        BACNode root = search(chr, open, close, source, mode, budget, previous, metrics);
+        metrics.searchNanos = System.nanoTime() - started;
+        long edges = measure(root);
+        if (mode == Mode.RECURSIVE_CTE && source instanceof SqlBACSource)
+            metrics.rows = edges;
+        registry.searched(metrics);
+        return root;
+    }
+
+    /**
+     *
+     * @param chr - chromosome
+     * @param open - open position of the region
+     * @param close - close position of the region
+     * @param source - source of bacs
+     * @param mode - tree construction mode
+     * @param budget - search budget, null for none
+     * @param previous - tree whose window and subtrees can be reused, null for none
+     * @param metrics - metrics of the search, null if metrics are disabled
+     * @return - BAC node that is a root of the tree covering the region
+     * @throws SQLException - SQL exception
+     */
+    private BACNode search(String chr, int open, int close, BACSource source, Mode mode, SearchBudget budget,
+                           BACTree previous, SearchMetrics metrics) throws SQLException {
+        if (budget != null && budget.isExhausted(0))
+            return getPartialRoot();
+        // the precomputed tiling table answers the locus without fetching its window
+        if (mode == Mode.MIN_TILING && source instanceof TilingTable)
+            return ((TilingTable) source).solve(chr, open, close);
+        if (mode == Mode.MIN_TILING) {
+            BACStore window = getWindow(previous, source, chr, open, close, metrics);
+            return TilingSolver.solve(window, open, close);
+        }
+        if (mode == Mode.RECURSIVE_CTE && source instanceof SqlBACSource) {
+            BACNode root = ((SqlBACSource) source).findTree(chr, open, close, CTE_MAX_DEPTH);
+            root.getChildren().sort(new BACNode.NodeComparator());
+            if (metrics != null)
+                metrics.queries++;
+            return root;
+        }
+        if (mode == Mode.LOCUS_WINDOW) {
+            BACStore window = getWindow(previous, source, chr, open, close, metrics);
+            source = new BACIndex(window);
+        }
+        // the in-memory index is searched by one thread for every library once the locus window is large enough
+        boolean concurrent = source instanceof BACIndex
+                && ((BACIndex) source).countWindow(chr, open, close) >= PARALLEL_THRESHOLD;
+        Search search = new Search(source, chr, metrics, budget, concurrent);
+        // continuations towards the same close do not depend on the open position
+        if (previous != null && previous.memo != null && previous.close == close) {
+            search.memo.putAll(previous.memo);
+            search.expanded.addAll(previous.expanded);
+        }
+        BACNode root = getBACNode(search, open, close);
+        partial = search.partial;
+        // subtrees cut by the budget are not complete, so a partial search is not reused
+        if (reusable && !partial) {
+            memo = search.memo;
+            expanded = search.expanded;
+        }
+        // lookups in the locus window are not source queries
+        if (metrics != null && mode != Mode.LOCUS_WINDOW) {
+            metrics.queries += search.lookups;
+            metrics.rows += search.bacs;
+        }
+        return root;
+    }
+
+    /**
+     *
+     * @return - root of an empty tree, the budget ran out before any path was found
+     */
+    private BACNode getPartialRoot() {
+        partial = true;
+        BACNode root = new BACNode();
+        root.mark(true);
+        return root;
+    }
+
+    /**
+     * reuses the window of the previous tree: its rows which are still in the new window and the bacs
+     * starting in the flanks by which the window grew. The previous padding is kept, so the source is not
+     * asked for its largest bac length again. A reusable tree keeps the window and its padding
+     * @param previous - tree whose window can be reused, null for none
+     * @param source - source of bacs
+     * @param chr - chromosome
+     * @param open - locus open position
+     * @param close - locus close position
+     * @param metrics - metrics of the search, null if metrics are disabled
+     * @return - store of candidate bacs
+     * @throws SQLException - SQL exception
+     */
+    private BACStore getWindow(BACTree previous, BACSource source, String chr, int open, int close,
+                               SearchMetrics metrics) throws SQLException {
+        BACStore window;
+        if (previous == null || previous.window == null) {
+            window = findWindow(source, chr, open, close, metrics);
+            if (reusable) {
+                this.window = window;
+                maxLength = source.getMaxLength();
+            }
+            return window;
+        }
+        int maxLength = previous.maxLength;
+        long from = (long) open - maxLength;
+        long to = (long) close + maxLength;
+        long previousFrom = (long) previous.open - maxLength;
+        long previousTo = (long) previous.close + maxLength;
+        if (to < previousFrom || from > previousTo) {
+            window = findStarts(source, chr, from, to, metrics);
+        } else {
+            window = new BACStore();
+            if (from < previousFrom)
+                window.addAll(findStarts(source, chr, from, previousFrom - 1, metrics));
+            BACStore previousWindow = previous.window;
+            for (int row = 0; row < previousWindow.size(); row++) {
+                int start = previousWindow.getStart(row);
+                if (start >= from && start <= to)
+                    window.add(previousWindow, row);
+            }
+            if (to > previousTo)
+                window.addAll(findStarts(source, chr, previousTo + 1, to, metrics));
+        }
+        if (reusable) {
+            this.window = window;
+            this.maxLength = maxLength;
+        }
+        return window;
+    }
+
+    /**
+     *
+     * @param source - source of bacs
+     * @param chr - chromosome
+     * @param from - smallest start coordinate
+     * @param to - largest start coordinate
+     * @param metrics - metrics of the search, null if metrics are disabled
+     * @return - store of the bacs
+     * @throws SQLException - SQL exception
+     */
+    private static BACStore findStarts(BACSource source, String chr, long from, long to, SearchMetrics metrics)
+            throws SQLException {
+        BACStore bacs = source.findStarts(chr, (int) Math.max(Integer.MIN_VALUE, from),
+                (int) Math.min(Integer.MAX_VALUE, to));
+        if (metrics != null) {
+            metrics.queries++;
+            metrics.rows += bacs.size();
+        }
+        return bacs;
+    }
+
+    /**
+     *
+     * @param source - source of bacs
+     * @param chr - chromosome
+     * @param open - locus open position
+     * @param close - locus close position
+     * @param metrics - metrics of the search, null if metrics are disabled
+     * @return - store of candidate bacs
+     * @throws SQLException - SQL exception
+     */
+    private static BACStore findWindow(BACSource source, String chr, int open, int close, SearchMetrics metrics)
+            throws SQLException {
+        BACStore window = source.findWindow(chr, open, close);
+        if (metrics != null) {
+            metrics.queries++;
+            metrics.rows += window.size();
+        }
+        return window;
+    }
+
+    /**
+     * counts the distinct and marked nodes, the depth and the root to leaf paths of the tree
+     * @param root - root node
+     * @return - number of distinct edges
+     */
+    private long measure(BACNode root) {
+        Map<NaryNode, long[]> visited = new IdentityHashMap<>();
+        long[] rootMeasure = measure(root, visited);
+        long edges = 0;
+        for (NaryNode node : visited.keySet()) {
+            if (node.isMarked())
+                metrics.markedNodes++;
+            if (!node.isMarked())
+                edges += node.getChildren().size();
+        }
+        metrics.nodes = visited.size();
+        metrics.depth = (int) rootMeasure[0] - 1;
+        leafPaths = rootMeasure[0] > 1 ? rootMeasure[1] : 0;
+        return edges;
+    }
+
+    /**
+     *
+     * @param node - node
+     * @param visited - depth and number of leaf paths of the visited nodes
+     * @return - number of nodes on the longest path from the node and number of leaf paths from the node
+     */
+    private static long[] measure(NaryNode node, Map<NaryNode, long[]> visited) {
+        long[] measure = visited.get(node);
+        if (measure != null)
+            return measure;
+        measure = new long[]{1, 1};
+        visited.put(node, measure);
+        if (!node.isMarked() && !node.getChildren().isEmpty()) {
+            measure[1] = 0;
+            for (NaryNode child : node.getChildren()) {
+                long[] childMeasure = measure(child, visited);
+                measure[0] = Math.max(measure[0], childMeasure[0] + 1);
+                // saturates instead of overflowing on pathological trees
+                measure[1] = measure[1] + childMeasure[1] < 0 ? Long.MAX_VALUE : measure[1] + childMeasure[1];
+            }
+        }
+        return measure;
+    }
+
+    /**
+     *
+     * @param locus - locus of interest
+     * @return - database table (bac library) name for the locus organism and source
+     * @throws LimsException - Lims exception
+     */
+    static String getTable(LocusOfInterest locus) throws LimsException {
+        return "bac_" + locus.getSource(locus.getOrganism());
     }
 
     /**
      *  finds children for the given parent node, that cover [remaining] region
+     *  children are taken from the search memo, so a bac reached from several parents is a single node
+     *  and bacs which already are children of the parent are skipped
      * @param parent - parent node
-     * @param connection - database connection
-     * @param table - database table
-     * @param chr - chromosome
+     * @param search - search state
+     * @param source - source of bacs
      * @param start - start coordinate of the region
      * @param end - end coordinate of the region
      * @throws SQLException - SQL exception
      */
-    private void findChildren(NaryNode parent, Connection connection, String table, String chr, int start, int end )
+    private static void findChildren(NaryNode parent, Search search, BACSource source, int start, int end )
             throws SQLException {
+        long started = search.metrics != null ? System.nanoTime() : 0;
         BACNode bacParent = (BACNode) parent;
-        PreparedStatement ps;
-        String sql;
-        String groupByLibrarySql = "select substring(name,1,4) as library, end_loc " +
-                " from lims." + table + " where chromosome = '" + chr +
-                "'  and start_loc <= ? and end_loc >= ? group by library, end_loc order by library" ;
-
-        if ( start != end && bacParent != null && bacParent.getBac() != null) {
-            // 4) try to find bacs that for each library can complete the solution
-            //                                    ------------------------
-            //                     ---------------------------
-            //      ---------------------
-            //         |---------------------------------------------|
-            String library = bacParent.getBac().getName().substring(0, 3);
-            int bacParentStart = bacParent.getBac().getStart();
-            int bacParentEnd = bacParent.getBac().getEnd();
-            sql = "select * from lims." + table +
-                    " where chromosome = '" + chr + "'  and start_loc <= ? and end_loc >= ? " ;
-            sql += " and start_loc  > " + bacParentStart + " and end_loc > " + bacParentEnd;
-            sql += " and name like '" + library + "%'";
-            ps = connection.prepareStatement(sql);
-            ps.setInt(1, start);
-            ps.setInt(2, end);
-        } else if (start == end && bacParent != null && bacParent.getBac() != null){
-            // 3) try to find bacs that for each library cover most of the remaining region
-            //                     ---------------------------
-            //      ---------------------
-            //         |---------------------------------------------|
-
-            String library = bacParent.getBac().getName().substring(0, 3);
-            int bacParentStart = bacParent.getBac().getStart();
-            int bacParentEnd = bacParent.getBac().getEnd();
-            sql = "select * from lims." + table + " A, (" + groupByLibrarySql + ") B" +
-                    " where chromosome = '" + chr + "'  and A.start_loc <= ? and A.end_loc >= ? " ;
-            sql += " and A.start_loc  > " + bacParentStart + " and A.end_loc > " + bacParentEnd;
-            sql += " and A.name like '" + library + "%'";
-            sql += " and A.end_loc =  B.end_loc";
-            ps = connection.prepareStatement(sql);
-            ps.setInt(1, start);
-            ps.setInt(2, end);
-            ps.setInt(3, start);
-            ps.setInt(4, end);
-        }
-         else if (start == end) {
-             // 2) try to find single bacs that for each library cover most of the region
-             //    ---------------------------------- (RP11)
-             //      ------------------------         (CH17)
-             //         |---------------------------------------------|
-            sql = "select distinct * from lims." + table + " A, (" + groupByLibrarySql + ") B" +
-                    " where A.chromosome = '" + chr + "'  and A.start_loc <= ? and A.end_loc > ? " ;
-            sql += " and A.end_loc =  B.end_loc";
-            ps = connection.prepareStatement(sql);
-            ps.setInt(1, start);
-            ps.setInt(2, end);
-            ps.setInt(3, start);
-            ps.setInt(4, end);
+        List<BAC> bacs;
+        try {
+            bacs = source.findBACs(bacParent.getBac(), search.chr, start, end);
+        } catch (SQLTimeoutException e) {
+            if (search.budget == null)
+                throw e;
+            // the query ran past the deadline, the parent is left without children
+            search.partial = true;
+            bacs = Collections.emptyList();
+        }
+        if (parent.getChildren() != null && !bacs.isEmpty())
+            addChildren(parent, search, bacs);
+        search.count(bacs.size(), search.metrics != null ? System.nanoTime() - started : 0);
+    }
 
-        } else {
-             // 1) try to find single bac solutions that cover the region completely
-             //    ------------------------------------------------------- (RP11)
-             //      ----------------------------------------------------------------------         (CH17)
-             //         |---------------------------------------------|
-            sql = "select distinct * from lims." + table +
-                    " where chromosome = '" + chr + "'  and start_loc <= ? and end_loc >= ? " ;
-            ps = connection.prepareStatement(sql);
-            ps.setInt(1, start);
-            ps.setInt(2, end);
-        }
-
-        ResultSet rs = ps.executeQuery();
-
-        while(rs.next()){
-            BAC bac = new BAC(rs);
-            BACNode node = new BACNode(bac);
-            if (parent != null && (parent.getChildren() != null) && !parent.getChildren().contains(node)) {
-                parent.getChildren().add(new BACNode(bac));
+    /**
+     *
+     * @param parent - parent node
+     * @param search - search state
+     * @param bacs - bacs found for the parent
+     */
+    private static void addChildren(NaryNode parent, Search search, List<BAC> bacs) {
+        Set<BAC> children = new HashSet<>();
+        for (NaryNode child : parent.getChildren()) {
+            children.add(((BACNode) child).getBac());
+        }
+        for (BAC bac : bacs) {
+            if (children.add(bac)) {
+                parent.getChildren().add(search.memo.computeIfAbsent(new Subproblem(bac), key -> new BACNode(bac)));
             }
         }
     }
 
     /**
      * recursively populates BAC tree
+     * every node is expanded once, nodes shared by several parents make the tree a DAG
      * @param solutionFound - indicates whether the solution has been found
      * @param parent - parent node
-     * @param connection - database connection
-     * @param table - database table (bac library) name
-     * @param chr - chromosome
+     * @param search - search state
      * @param start - start coordinate
      * @param end - end coordinate
      * @throws SQLException - SQL exception
      */
-    private void getBACs(Boolean solutionFound, NaryNode parent, Connection connection, String table, String chr,
+    private void getBACs(Boolean solutionFound, NaryNode parent, Search search,
                          int start, int end ) throws SQLException{
         if (solutionFound)
             return;
-        findChildren(parent, connection, table,chr, start,end);
-        solutionFound = !parent.getChildren().isEmpty();
-        if (solutionFound || parent.isMarked())
-            return;
-        else{
-            findChildren(parent, connection, table,chr, start,start);
-            if (parent.getChildren().isEmpty()){
-                parent.mark(true);
-                return;
-            }
+        if (expand(parent, search, search.source, start, end)) {
             for(NaryNode node : parent.getChildren()) {
                 int newStart = ((BACNode) node).getBac().getEnd();
                 if (newStart <= start)
                     node.mark(true);
-                if (!node.isMarked()) {
-                    getBACs(solutionFound, node, connection, table,chr, newStart, end);
+                if (!node.isMarked() && search.expanded.add(node)) {
+                    getBACs(solutionFound, node, search, newStart, end);
                 }
             }
         }
     }
 
+    /**
+     * populates BAC tree like getBACs, the subtrees of the root children are searched in parallel by library.
+     * A bac is continued only by bacs of its library, so the libraries share no nodes, and a node is expanded
+     * the same way whichever parent reaches it first, so the tree is the one getBACs builds
+     * @param root - root node
+     * @param search - concurrent search state
+     * @param open - open position of the region
+     * @param close - close position of the region
+     * @throws SQLException - SQL exception
+     */
+    private void getLibraryBACs(NaryNode root, Search search, int open, int close) throws SQLException {
+        if (!expand(root, search, search.source, open, close))
+            return;
+        Map<String, List<NaryNode>> libraries = new LinkedHashMap<>();
+        for (NaryNode node : root.getChildren()) {
+            BAC bac = ((BACNode) node).getBac();
+            if (bac.getEnd() <= open)
+                node.mark(true);
+            if (!node.isMarked() && search.expanded.add(node))
+                libraries.computeIfAbsent(bac.getLibrary(), library -> new ArrayList<>()).add(node);
+        }
+        if (libraries.size() < 2) {
+            for (List<NaryNode> nodes : libraries.values()) {
+                getLibraryBACs(nodes, search, close);
+            }
+            return;
+        }
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+        for (List<NaryNode> nodes : libraries.values()) {
+            tasks.add(ForkJoinTask.adapt(() -> {
+                getLibraryBACs(nodes, search, close);
+                return null;
+            }));
+        }
+        try {
+            ForkJoinTask.invokeAll(tasks);
+        } catch (RuntimeException e) {
+            // the worker exception arrives wrapped, possibly more than once
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof SQLException)
+                    throw (SQLException) cause;
+            }
+            throw e;
+        }
+    }
+
     /**
      *
-     * @param locus - locus of interest
-     * @return  - BAC node tat is a root of the tree covering the locus
-     * @throws LimsException - Lims exception
+     * @param nodes - root children of a library
+     * @param search - search state
+     * @param close - close position of the region
      * @throws SQLException - SQL exception
      */
-    private  BACNode getBACNode(LocusOfInterest locus) throws LimsException, SQLException {
+    private void getLibraryBACs(List<NaryNode> nodes, Search search, int close) throws SQLException {
+        for (NaryNode node : nodes) {
+            getBACs(Boolean.FALSE, node, search, ((BACNode) node).getBac().getEnd(), close);
+        }
+    }
+
+    /**
+     * finds the children of the node: bacs which complete the solution or, if there are none,
+     * bacs which continue it
+     * @param parent - parent node
+     * @param search - search state
+     * @param source - source of bacs
+     * @param start - start coordinate
+     * @param end - end coordinate
+     * @return - true, if the children continue the solution and need to be expanded
+     * @throws SQLException - SQL exception
+     */
+    private static boolean expand(NaryNode parent, Search search, BACSource source, int start, int end)
+            throws SQLException {
+        // out of budget: nodes which are not expanded are dead ends, so only complete paths remain
+        if (search.isExhausted()) {
+            parent.mark(true);
+            return false;
+        }
+        findChildren(parent, search, source, start,end);
+        if (!parent.getChildren().isEmpty() || parent.isMarked())
+            return false;
+        if (!search.isExhausted())
+            findChildren(parent, search, source, start,start);
+        if (parent.getChildren().isEmpty()){
+            parent.mark(true);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * exhaustive search which expands independent nodes concurrently, every expansion borrows a source
+     * from the queue for its lookups. The tree is the same as the one of the depth first search
+     * @param chr - chromosome
+     * @param open - open position of the region
+     * @param close - close position of the region
+     * @param sources - sources of bacs, the number of sources bounds the number of concurrent lookups
+     * @param executor - executor running the expansions
+     * @param budget - search budget, null for none
+     * @return - future BAC tree, not reusable
+     */
+    static CompletableFuture<BACTree> buildAsync(String chr, int open, int close, BlockingQueue<BACSource> sources,
+                                                 Executor executor, SearchBudget budget) {
+        BACTree bacTree = new BACTree();
+        SearchMetrics metrics = bacTree.registry.isEnabled()
+                ? new SearchMetrics(chr, open, close, Mode.PER_NODE) : null;
+        long started = System.nanoTime();
+        Search search = new Search(null, chr, metrics, budget, true);
+        BACNode root = new BACNode();
+        return expandAsync(root, search, sources, executor, open, close).thenApply(done -> {
+            root.getChildren().sort(new BACNode.NodeComparator());
+            bacTree.tree = new NaryTree(root);
+            bacTree.partial = search.partial;
+            bacTree.chr = chr;
+            bacTree.open = open;
+            bacTree.close = close;
+            bacTree.mode = Mode.PER_NODE;
+            if (metrics != null) {
+                bacTree.metrics = metrics;
+                metrics.searchNanos = System.nanoTime() - started;
+                metrics.queries = search.lookups;
+                metrics.rows = search.bacs;
+                bacTree.measure(root);
+                bacTree.registry.searched(metrics);
+            }
+            return bacTree;
+        });
+    }
+
+    /**
+     *
+     * @param parent - parent node
+     * @param search - search state
+     * @param sources - sources of bacs
+     * @param executor - executor running the expansions
+     * @param start - start coordinate
+     * @param end - end coordinate
+     * @return - future completed once the subtree of the node has been expanded
+     */
+    private static CompletableFuture<Void> expandAsync(NaryNode parent, Search search, BlockingQueue<BACSource> sources,
+                                                       Executor executor, int start, int end) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<NaryNode> next = new ArrayList<>();
+            try {
+                BACSource source = sources.take();
+                // pooled sql sources are shared by trees, the budget of this tree bounds its own queries
+                SqlBACSource sqlSource = source instanceof SqlBACSource ? (SqlBACSource) source : null;
+                SearchBudget sourceBudget = sqlSource != null ? sqlSource.getBudget() : null;
+                if (sqlSource != null && search.budget != null)
+                    sqlSource.setBudget(search.budget);
+                try {
+                    if (!expand(parent, search, source, start, end))
+                        return next;
+                } finally {
+                    if (sqlSource != null)
+                        sqlSource.setBudget(sourceBudget);
+                    sources.add(source);
+                }
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(new SQLException("interrupted while building BAC tree", e));
+            }
+            for (NaryNode node : parent.getChildren()) {
+                if (((BACNode) node).getBac().getEnd() <= start)
+                    node.mark(true);
+                if (!node.isMarked() && search.expanded.add(node))
+                    next.add(node);
+            }
+            return next;
+        }, executor).thenCompose(next -> CompletableFuture.allOf(next.stream()
+                .map(node -> expandAsync(node, search, sources, executor, ((BACNode) node).getBac().getEnd(), end))
+                .toArray(CompletableFuture[]::new)));
+    }
+
+    /**
+     *
+     * @param search - search state
+     * @param open - open position of the region
+     * @param close - close position of the region
+     * @return  - BAC node tat is a root of the tree covering the region
+     * @throws SQLException - SQL exception
+     */
+    private  BACNode getBACNode(Search search, int open, int close) throws SQLException {
         BACNode root = new BACNode();
-        String table = "bac_" + locus.getSource(locus.getOrganism());
-        Connection connection = DataSource.getInstance().getConnection();
 
         Boolean solutionFound = Boolean.FALSE;
-        getBACs(solutionFound, root, connection, table, locus.getChromosome(),
-                locus.getOpenPosition(), locus.getClosePosition());
+        if (search.concurrent)
+            getLibraryBACs(root, search, open, close);
+        else
+            getBACs(solutionFound, root, search, open, close);
         root.getChildren().sort(new BACNode.NodeComparator());
         return root;
     }
@@ -178,7 +886,37 @@ public class BACTree  implements Jsonable{
      * @return list of BAC paths covering locus
      */
     public List<NaryPath> getBACPaths() {
-        return tree.getAllPaths();
+        if (metrics == null)
+            return tree.getAllPaths();
+        long started = System.nanoTime();
+        List<NaryPath> paths = tree.getAllPaths();
+        long nanos = System.nanoTime() - started;
+        synchronized (metrics) {
+            metrics.leafPaths = leafPaths;
+            metrics.paths = paths.size();
+            metrics.pathsNanos += nanos;
+            registry.pathsEnumerated(metrics, nanos);
+        }
+        return paths;
+    }
+
+    /**
+     *
+     * @param k - number of paths
+     * @return k best BAC paths covering locus
+     */
+    public List<NaryPath> getBACPaths(int k) {
+        return tree.getTopPaths(k);
+    }
+
+    /**
+     *
+     * @param k - number of paths
+     * @param scorer - path scorer
+     * @return k best BAC paths covering locus by the scorer
+     */
+    public List<NaryPath> getBACPaths(int k, PathScorer scorer) {
+        return tree.getTopPaths(k, scorer);
     }
 
     /**
@@ -186,7 +924,77 @@ public class BACTree  implements Jsonable{
      * @return tree as json string
      */
     public String toJson(){
-        return tree.toJson();
+        long started = metrics != null ? System.nanoTime() : 0;
+        String json = tree.toJson();
+        if (metrics != null)
+            jsonWritten(System.nanoTime() - started);
+        return json;
+    }
+
+    /**
+     * streams tree as json to the writer
+     * @param out - writer
+     * @throws IOException - IO exception
+     */
+    public void toJson(Writer out) throws IOException {
+        long started = metrics != null ? System.nanoTime() : 0;
+        tree.toJson(out);
+        if (metrics != null)
+            jsonWritten(System.nanoTime() - started);
+    }
+
+    /**
+     * streams tree as UTF-8 json to the output stream
+     * @param out - output stream
+     * @throws IOException - IO exception
+     */
+    public void toJson(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        toJson(writer);
+        writer.flush();
+    }
+
+    /**
+     *
+     * @param nanos - time spent writing json
+     */
+    private void jsonWritten(long nanos) {
+        synchronized (metrics) {
+            metrics.jsonNanos += nanos;
+            registry.jsonWritten(metrics, nanos);
+        }
+    }
+
+    /**
+     *
+     * @return - true, if the search budget ran out and the tree holds only the complete paths found until then
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     *
+     * @return - metrics of the tree, null if metrics were disabled when the tree was built
+     */
+    public SearchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * sets the registry which receives the metrics of the trees built from now on
+     * @param registry - metrics registry, MetricsRegistry.NOOP disables metrics
+     */
+    public static void setMetricsRegistry(MetricsRegistry registry) {
+        metricsRegistry = registry != null ? registry : MetricsRegistry.NOOP;
+    }
+
+    /**
+     *
+     * @return - metrics registry
+     */
+    public static MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
     }
 
 }
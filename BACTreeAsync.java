@@ -0,0 +1,244 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import org.nyumc.isg.lims.common.DataSource;
+import org.nyumc.isg.lims.common.LimsException;
+import org.nyumc.isg.lims.common.NaryPath;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Asynchronous BAC tree construction.
+ * Trees are built on an executor, by default one virtual thread per task where the runtime has them,
+ * so callers do not hold a thread while the database is queried. All trees share a semaphore which caps
+ * the number of queries running at once against the connection pool. Trees of a bac library table take their
+ * sources from a pool of the table: at most parallelism sources, each on its own DataSource connection, created
+ * on first use and kept until the instance is closed. A tree holds a source for the whole search, except in
+ * PER_NODE mode where the nodes of a tree are expanded concurrently and every expansion takes a source of
+ * the pool for a single lookup
+ */
+public class BACTreeAsync implements AutoCloseable {
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int parallelism;
+    private final BACTree.Mode mode;
+    private final Map<String, BlockingQueue<BACSource>> pools = new ConcurrentHashMap<>();
+    private final List<SqlBACSource> opened = new ArrayList<>();
+    private final Set<CompletableFuture<BACTree>> pending = ConcurrentHashMap.newKeySet();
+    private boolean closed;
+
+    /**
+     * Default constructor, minimum tiling, 16 concurrent queries, 4 concurrent expansions per tree
+     */
+    public BACTreeAsync() {
+        this(newVirtualThreadExecutor(), 16, 4, BACTree.Mode.MIN_TILING);
+    }
+
+    /**
+     * Constructor
+     * @param executor - executor the trees are built on, shut down on close
+     * @param maxQueries - maximum number of queries running at once
+     * @param parallelism - number of pooled sources of a bac library table, maximum number of concurrent
+     *                    node expansions of a PER_NODE tree
+     * @param mode - tree construction mode
+     */
+    public BACTreeAsync(ExecutorService executor, int maxQueries, int parallelism, BACTree.Mode mode) {
+        this.executor = executor;
+        this.permits = new Semaphore(maxQueries, true);
+        this.parallelism = Math.max(1, parallelism);
+        this.mode = mode;
+    }
+
+    /**
+     *
+     * @return - executor running a virtual thread per task, a cached pool of daemon threads on runtimes
+     * without virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "bac-tree-async");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     *
+     * @param locus - locus of interest
+     * @return - future BAC tree covering the locus
+     */
+    public CompletableFuture<BACTree> build(LocusOfInterest locus) {
+        return build(locus, null);
+    }
+
+    /**
+     *
+     * @param locus - locus of interest
+     * @param budget - search budget, null for none
+     * @return - future BAC tree covering the locus, completed exceptionally with Lims or SQL exception
+     */
+    public CompletableFuture<BACTree> build(LocusOfInterest locus, SearchBudget budget) {
+        return track(CompletableFuture.supplyAsync(() -> {
+            try {
+                BlockingQueue<BACSource> sources = getPool(BACTree.getTable(locus));
+                if (mode == BACTree.Mode.PER_NODE)
+                    return BACTree.buildAsync(locus.getChromosome(), locus.getOpenPosition(),
+                            locus.getClosePosition(), sources, executor, budget);
+                BACSource source = take(sources);
+                try {
+                    return CompletableFuture.completedFuture(new BACTree(locus.getChromosome(),
+                            locus.getOpenPosition(), locus.getClosePosition(), source, mode, budget));
+                } finally {
+                    sources.add(source);
+                }
+            } catch (LimsException | SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, executor).thenCompose(tree -> tree));
+    }
+
+    /**
+     *
+     * @param chr - chromosome
+     * @param open - open position of the region
+     * @param close - close position of the region
+     * @param source - source of bacs, in PER_NODE mode nodes are expanded concurrently only for the thread safe
+     *               in-memory sources (BACIndex, TilingTable), other sources are used by one expansion at a time
+     * @param budget - search budget, null for none
+     * @return - future BAC tree covering the region, completed exceptionally with SQL exception
+     */
+    public CompletableFuture<BACTree> build(String chr, int open, int close, BACSource source, SearchBudget budget) {
+        if (mode == BACTree.Mode.PER_NODE) {
+            int lookups = source instanceof BACIndex || source instanceof TilingTable ? parallelism : 1;
+            BlockingQueue<BACSource> sources = new ArrayBlockingQueue<>(lookups);
+            for (int i = 0; i < lookups; i++) {
+                sources.add(source);
+            }
+            return track(BACTree.buildAsync(chr, open, close, sources, executor, budget));
+        }
+        return track(CompletableFuture.supplyAsync(() -> {
+            try {
+                return new BACTree(chr, open, close, source, mode, budget);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, executor));
+    }
+
+    /**
+     *
+     * @param locus - locus of interest
+     * @return - future list of BAC paths covering the locus
+     */
+    public CompletableFuture<List<NaryPath>> getBACPaths(LocusOfInterest locus) {
+        return build(locus).thenApplyAsync(BACTree::getBACPaths, executor);
+    }
+
+    /**
+     *
+     * @param table - database table (bac library) name
+     * @return - source pool of the table, filled on first use
+     * @throws LimsException - Lims exception
+     * @throws SQLException - SQL exception
+     */
+    private BlockingQueue<BACSource> getPool(String table) throws LimsException, SQLException {
+        BlockingQueue<BACSource> pool = pools.get(table);
+        if (pool != null)
+            return pool;
+        synchronized (this) {
+            if (closed)
+                throw new SQLException("BACTreeAsync is closed");
+            pool = pools.get(table);
+            if (pool == null) {
+                pool = new ArrayBlockingQueue<>(parallelism);
+                for (int i = 0; i < parallelism; i++) {
+                    SqlBACSource source = new SqlBACSource(DataSource.getInstance().getConnection(), table, permits);
+                    opened.add(source);
+                    pool.add(source);
+                }
+                pools.put(table, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     *
+     * @param sources - source pool
+     * @return - source taken from the pool, waits for one to be returned
+     * @throws SQLException - SQL exception, if interrupted
+     */
+    private static BACSource take(BlockingQueue<BACSource> sources) throws SQLException {
+        try {
+            return sources.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a BAC source", e);
+        }
+    }
+
+    /**
+     * keeps the tree pending until it is built
+     * @param tree - future tree
+     * @return - the future tree
+     */
+    private CompletableFuture<BACTree> track(CompletableFuture<BACTree> tree) {
+        pending.add(tree);
+        tree.whenComplete((built, failure) -> pending.remove(tree));
+        return tree;
+    }
+
+    /**
+     * waits for the trees being built, shuts the executor down and closes the pooled sources and connections
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).exceptionally(failure -> null).join();
+        } finally {
+            executor.shutdown();
+            synchronized (this) {
+                for (SqlBACSource source : opened) {
+                    close(source);
+                }
+                opened.clear();
+                pools.clear();
+            }
+        }
+    }
+
+    /**
+     * closes the statements and the connection of a pooled source
+     * @param source - pooled source
+     */
+    private static void close(SqlBACSource source) {
+        try {
+            source.close();
+            source.getConnection().close();
+        } catch (SQLException e) {
+            // the instance is closed, nothing is left to fail
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import org.nyumc.isg.lims.common.DataSource;
+import org.nyumc.isg.lims.common.LimsException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+
+/**
+ * Builds BAC trees for a panel of loci.
+ * Loci are grouped by bac library table and chromosome, and split where the windows of neighbouring loci
+ * are more than two bac lengths apart. The bacs of every group are fetched once and the loci are solved
+ * in parallel over the shared in-memory index
+ */
+public class BACTreeBatch {
+    private final ForkJoinPool pool;
+    private final BACTree.Mode mode;
+
+    /**
+     * Default constructor, minimum tiling on the common pool
+     */
+    public BACTreeBatch() {
+        this(ForkJoinPool.commonPool(), BACTree.Mode.MIN_TILING);
+    }
+
+    /**
+     * Constructor
+     * @param pool - fork join pool the loci are solved on, owned by the caller
+     * @param mode - tree construction mode, PER_NODE searches the shared index directly
+     */
+    public BACTreeBatch(ForkJoinPool pool, BACTree.Mode mode) {
+        this.pool = pool;
+        this.mode = mode;
+    }
+
+    /**
+     *
+     * @param loci - loci of interest
+     * @return - BAC tree of every locus
+     * @throws LimsException - Lims exception
+     * @throws SQLException - SQL exception
+     */
+    public Map<LocusOfInterest, BACTree> build(Collection<LocusOfInterest> loci) throws LimsException, SQLException {
+        Map<String, Map<String, List<LocusOfInterest>>> groups = new LinkedHashMap<>();
+        for (LocusOfInterest locus : loci) {
+            groups.computeIfAbsent(BACTree.getTable(locus), table -> new LinkedHashMap<>())
+                    .computeIfAbsent(locus.getChromosome(), chr -> new ArrayList<>())
+                    .add(locus);
+        }
+
+        Map<LocusOfInterest, ForkJoinTask<BACTree>> tasks = new LinkedHashMap<>();
+        try (Connection connection = DataSource.getInstance().getConnection()) {
+            for (Map.Entry<String, Map<String, List<LocusOfInterest>>> table : groups.entrySet()) {
+                try (SqlBACSource source = new SqlBACSource(connection, table.getKey())) {
+                    long gap = 2L * source.getMaxLength();
+                    for (Map.Entry<String, List<LocusOfInterest>> chromosome : table.getValue().entrySet()) {
+                        List<LocusOfInterest> sorted = new ArrayList<>(chromosome.getValue());
+                        sorted.sort(Comparator.comparingInt(LocusOfInterest::getOpenPosition));
+                        int from = 0;
+                        int close = Integer.MIN_VALUE;
+                        for (int i = 0; i <= sorted.size(); i++) {
+                            // windows further apart than two bac lengths share no bacs
+                            if (i == sorted.size() || i > from && sorted.get(i).getOpenPosition() - (long) close > gap) {
+                                List<LocusOfInterest> group = sorted.subList(from, i);
+                                BACIndex index = new BACIndex(source.findWindow(chromosome.getKey(),
+                                        group.get(0).getOpenPosition(), close));
+                                for (LocusOfInterest locus : group) {
+                                    tasks.put(locus, pool.submit(() -> new BACTree(locus, index, mode)));
+                                }
+                                from = i;
+                                close = Integer.MIN_VALUE;
+                            }
+                            if (i < sorted.size())
+                                close = Math.max(close, sorted.get(i).getClosePosition());
+                        }
+                    }
+                }
+            }
+        }
+
+        Map<LocusOfInterest, BACTree> trees = new LinkedHashMap<>();
+        for (LocusOfInterest locus : loci) {
+            trees.put(locus, join(tasks.get(locus)));
+        }
+        return trees;
+    }
+
+    /**
+     *
+     * @param task - tree construction task
+     * @return - BAC tree
+     * @throws LimsException - Lims exception
+     * @throws SQLException - SQL exception
+     */
+    static BACTree join(Future<BACTree> task) throws LimsException, SQLException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while building BAC trees", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            if (cause instanceof LimsException)
+                throw (LimsException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+}
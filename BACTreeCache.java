@@ -0,0 +1,288 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import org.nyumc.isg.lims.common.DataSource;
+import org.nyumc.isg.lims.common.LimsException;
+import org.nyumc.isg.lims.common.NaryPath;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of BAC trees, their paths and json keyed by bac library table, chromosome, open and close.
+ * Entries are evicted in least recently used order beyond the maximum size and expire after the time to live.
+ * The version of a table (row count and largest end coordinate) is checked at most once per check interval,
+ * a changed version drops all entries of the table. Writers which change a table without changing its version
+ * call invalidate, if the version can not be read the entries live until their time to live.
+ * Concurrent requests for the same locus wait for a single tree construction
+ */
+public class BACTreeCache {
+    private final int maxEntries;
+    private final long ttl;
+    private final long checkInterval;
+    private final BACTree.Mode mode;
+    private final Map<Key, Entry> entries;
+    private final Map<String, Version> versions = new HashMap<>();
+    private long hits;
+    private long misses;
+
+    /**
+     * Default constructor, 1000 minimum tiling trees kept for an hour, table versions checked every minute
+     */
+    public BACTreeCache() {
+        this(1000, TimeUnit.HOURS.toMillis(1), TimeUnit.MINUTES.toMillis(1), BACTree.Mode.MIN_TILING);
+    }
+
+    /**
+     * Constructor
+     * @param maxEntries - maximum number of cached trees
+     * @param ttlMillis - time to live of a tree in milliseconds
+     * @param checkIntervalMillis - interval of table version checks in milliseconds
+     * @param mode - tree construction mode
+     */
+    public BACTreeCache(int maxEntries, long ttlMillis, long checkIntervalMillis, BACTree.Mode mode) {
+        this.maxEntries = maxEntries;
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.checkInterval = TimeUnit.MILLISECONDS.toNanos(checkIntervalMillis);
+        this.mode = mode;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > BACTreeCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     *
+     * @param locus - locus of interest
+     * @return - BAC tree covering the locus
+     * @throws LimsException - Lims exception
+     * @throws SQLException - SQL exception
+     */
+    public BACTree getTree(LocusOfInterest locus) throws LimsException, SQLException {
+        return getEntry(locus).getTree();
+    }
+
+    /**
+     *
+     * @param locus - locus of interest
+     * @return - unmodifiable list of BAC paths covering the locus
+     * @throws LimsException - Lims exception
+     * @throws SQLException - SQL exception
+     */
+    public List<NaryPath> getBACPaths(LocusOfInterest locus) throws LimsException, SQLException {
+        Entry entry = getEntry(locus);
+        List<NaryPath> paths = entry.paths;
+        if (paths == null) {
+            paths = Collections.unmodifiableList(entry.getTree().getBACPaths());
+            entry.paths = paths;
+        }
+        return paths;
+    }
+
+    /**
+     *
+     * @param locus - locus of interest
+     * @return - BAC tree covering the locus as json string
+     * @throws LimsException - Lims exception
+     * @throws SQLException - SQL exception
+     */
+    public String toJson(LocusOfInterest locus) throws LimsException, SQLException {
+        Entry entry = getEntry(locus);
+        String json = entry.json;
+        if (json == null) {
+            json = entry.getTree().toJson();
+            entry.json = json;
+        }
+        return json;
+    }
+
+    /**
+     * drops all entries of the table
+     * @param table - database table (bac library) name
+     */
+    public synchronized void invalidate(String table) {
+        entries.keySet().removeIf(key -> key.table.equals(table));
+    }
+
+    /**
+     * drops all entries
+     */
+    public synchronized void clear() {
+        entries.clear();
+        versions.clear();
+    }
+
+    /**
+     *
+     * @return - number of cached trees
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     *
+     * @return - number of lookups answered from the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     *
+     * @return - number of lookups which built a tree
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * finds the entry of the locus, the calling thread builds the tree if there is none
+     * @param locus - locus of interest
+     * @return - cache entry
+     * @throws LimsException - Lims exception
+     * @throws SQLException - SQL exception
+     */
+    private Entry getEntry(LocusOfInterest locus) throws LimsException, SQLException {
+        String table = BACTree.getTable(locus);
+        checkVersion(table);
+        Key key = new Key(table, locus.getChromosome(), locus.getOpenPosition(), locus.getClosePosition());
+        Entry entry;
+        boolean build = false;
+        synchronized (this) {
+            long now = System.nanoTime();
+            entry = entries.get(key);
+            if (entry != null && now - entry.created > ttl) {
+                entries.remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry(now);
+                entries.put(key, entry);
+                build = true;
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+        if (build) {
+            try {
+                entry.tree.complete(new BACTree(locus, mode));
+            } catch (LimsException | SQLException | RuntimeException e) {
+                synchronized (this) {
+                    entries.remove(key, entry);
+                }
+                entry.tree.completeExceptionally(e);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * drops the entries of the table if its version changed since the last check
+     * @param table - database table (bac library) name
+     * @throws LimsException - Lims exception
+     */
+    private void checkVersion(String table) throws LimsException {
+        Version version;
+        boolean first;
+        synchronized (this) {
+            long now = System.nanoTime();
+            version = versions.computeIfAbsent(table, t -> new Version());
+            if (version.checked != 0 && now - version.checked < checkInterval)
+                return;
+            first = version.checked == 0;
+            version.checked = now;
+        }
+        String sql = "select count(*), coalesce(max(end_loc), 0) from lims." + table;
+        long rows;
+        long maxEnd;
+        try (Connection connection = DataSource.getInstance().getConnection();
+             PreparedStatement ps = connection.prepareStatement(sql);
+             ResultSet rs = ps.executeQuery()) {
+            rs.next();
+            rows = rs.getLong(1);
+            maxEnd = rs.getLong(2);
+        } catch (SQLException e) {
+            // the version is unknown, the entries of the table expire by their time to live
+            return;
+        }
+        synchronized (this) {
+            if (version.rows != rows || version.maxEnd != maxEnd) {
+                if (!first)
+                    invalidate(table);
+                version.rows = rows;
+                version.maxEnd = maxEnd;
+            }
+        }
+    }
+
+    /**
+     * Cache key
+     */
+    private static class Key {
+        private final String table;
+        private final String chromosome;
+        private final int open;
+        private final int close;
+
+        Key(String table, String chromosome, int open, int close) {
+            this.table = table;
+            this.chromosome = chromosome;
+            this.open = open;
+            this.close = close;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof Key) {
+                Key key = (Key) other;
+                return open == key.open && close == key.close && table.equals(key.table)
+                        && Objects.equals(chromosome, key.chromosome);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(table, chromosome, open, close);
+        }
+    }
+
+    /**
+     * Cached tree with its paths and json computed on first use
+     */
+    private static class Entry {
+        private final long created;
+        private final CompletableFuture<BACTree> tree = new CompletableFuture<>();
+        private volatile List<NaryPath> paths;
+        private volatile String json;
+
+        Entry(long created) {
+            this.created = created;
+        }
+
+        BACTree getTree() throws LimsException, SQLException {
+            return BACTreeBatch.join(tree);
+        }
+    }
+
+    /**
+     * Last seen version of a table
+     */
+    private static class Version {
+        private long checked;
+        private long rows = -1;
+        private long maxEnd;
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming loader of BED files into a BAC store.
+ * Accepts BED4 to BED12 lines (chrom, chromStart, chromEnd, name, score, strand, thickStart, thickEnd, ...),
+ * optionally preceded by the bin column of UCSC table dumps, which is recognized by a numeric first field
+ * followed by a non-numeric chromosome. Fields are parsed in place from byte buffers:
+ * names are copied into the store as bytes and coordinates are parsed as digits, so no strings are
+ * created per field. Plain files are mapped and parsed in parallel in chunks split at line ends,
+ * gzipped files are inflated and parsed as a stream
+ */
+public class BedLoader {
+    private static final int CHUNK_SIZE = 64 << 20;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAX_FIELDS = 13;
+
+    private BedLoader() {
+    }
+
+    /**
+     * loads the file in chunks on a pool sized to the available cores
+     * @param file - BED file, plain or gzipped
+     * @return - store of the bacs of the file
+     * @throws IOException - IO exception, also thrown for malformed lines
+     */
+    public static BACStore load(Path file) throws IOException {
+        return load(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     *
+     * @param file - BED file, plain or gzipped
+     * @param threads - number of threads parsing a plain file
+     * @return - store of the bacs of the file in file order
+     * @throws IOException - IO exception, also thrown for malformed lines
+     */
+    public static BACStore load(Path file, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (isGzip(channel)) {
+                try (InputStream in = new GZIPInputStream(Channels.newInputStream(channel), BUFFER_SIZE)) {
+                    return read(Channels.newChannel(in));
+                }
+            }
+            return load(channel, threads);
+        }
+    }
+
+    /**
+     * parses the stream sequentially
+     * @param in - channel of BED lines
+     * @return - store of the bacs of the stream
+     * @throws IOException - IO exception, also thrown for malformed lines
+     */
+    public static BACStore read(ReadableByteChannel in) throws IOException {
+        BACStore store = new BACStore();
+        Parser parser = new Parser(store);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long offset = 0;
+        while (in.read(buffer) >= 0) {
+            int parsed = parser.parse(buffer, 0, buffer.position(), false, offset);
+            offset += parsed;
+            buffer.flip();
+            buffer.position(parsed);
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                // a line longer than the buffer
+                ByteBuffer grown = ByteBuffer.allocate(2 * buffer.capacity());
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+        parser.parse(buffer, 0, buffer.position(), true, offset);
+        return store;
+    }
+
+    /**
+     *
+     * @param channel - file channel
+     * @return - true, if the file starts with the gzip magic number
+     * @throws IOException - IO exception
+     */
+    private static boolean isGzip(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        channel.read(magic, 0);
+        return magic.position() == 2 && (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b;
+    }
+
+    /**
+     * parses the chunks of a plain file in parallel and concatenates them in file order
+     * @param channel - file channel
+     * @param threads - number of threads
+     * @return - store of the bacs of the file
+     * @throws IOException - IO exception
+     */
+    private static BACStore load(FileChannel channel, int threads) throws IOException {
+        long size = channel.size();
+        int chunks = size <= BUFFER_SIZE ? 1 : (int) Math.max(threads, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        long[] bounds = new long[chunks + 1];
+        for (int i = 1; i < chunks; i++) {
+            bounds[i] = getLineStart(channel, Math.max(bounds[i - 1], size * i / chunks));
+        }
+        bounds[chunks] = size;
+        if (chunks == 1)
+            return parse(channel, 0, size);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<BACStore>> tasks = new ArrayList<>();
+            for (int i = 0; i < chunks; i++) {
+                long from = bounds[i];
+                long to = bounds[i + 1];
+                tasks.add(pool.submit(() -> parse(channel, from, to)));
+            }
+            BACStore store = new BACStore();
+            for (ForkJoinTask<BACStore> task : tasks) {
+                store.addAll(join(task));
+            }
+            return store;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     *
+     * @param channel - file channel
+     * @param from - first byte of the chunk
+     * @param to - byte after the last one of the chunk
+     * @return - store of the bacs of the chunk
+     * @throws IOException - IO exception
+     */
+    private static BACStore parse(FileChannel channel, long from, long to) throws IOException {
+        BACStore store = new BACStore();
+        if (from < to) {
+            ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+            new Parser(store).parse(chunk, 0, chunk.limit(), true, from);
+        }
+        return store;
+    }
+
+    /**
+     *
+     * @param channel - file channel
+     * @param position - position in the file
+     * @return - start of the first line at or after the position
+     * @throws IOException - IO exception
+     */
+    private static long getLineStart(FileChannel channel, long position) throws IOException {
+        if (position == 0)
+            return 0;
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long offset = position - 1;
+        while (channel.read(buffer, offset) > 0) {
+            for (int i = 0; i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n')
+                    return offset + i + 1;
+            }
+            offset += buffer.position();
+            buffer.clear();
+        }
+        return channel.size();
+    }
+
+    /**
+     *
+     * @param task - chunk parsing task
+     * @return - store of the chunk
+     * @throws IOException - IO exception
+     */
+    private static BACStore join(ForkJoinTask<BACStore> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading BED file", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Parser of BED lines into a store, keeps the field bounds of the current line
+     */
+    private static class Parser {
+        private final BACStore store;
+        private final int[] starts = new int[MAX_FIELDS];
+        private final int[] ends = new int[MAX_FIELDS];
+        private int count;
+        private ByteBuffer buffer;
+        private byte[] lastChromosome = new byte[0];
+        private String chromosome;
+
+        Parser(BACStore store) {
+            this.store = store;
+        }
+
+        /**
+         * parses the complete lines of the buffer range
+         * @param buffer - buffer
+         * @param from - first byte of the range
+         * @param to - byte after the last one of the range
+         * @param last - true, if the range ends the input, then the last line may lack the line end
+         * @param offset - offset of the buffer in the input, for error messages
+         * @return - position after the last parsed line
+         * @throws IOException - malformed line
+         */
+        int parse(ByteBuffer buffer, int from, int to, boolean last, long offset) throws IOException {
+            this.buffer = buffer;
+            int lineStart = from;
+            for (int i = from; i < to; i++) {
+                if (buffer.get(i) == '\n') {
+                    parseLine(lineStart, i, offset);
+                    lineStart = i + 1;
+                }
+            }
+            if (last && lineStart < to) {
+                parseLine(lineStart, to, offset);
+                lineStart = to;
+            }
+            return lineStart;
+        }
+
+        private void parseLine(int from, int to, long offset) throws IOException {
+            if (to > from && buffer.get(to - 1) == '\r')
+                to--;
+            if (to == from || buffer.get(from) == '#' || startsWith(from, to, "track") || startsWith(from, to, "browser"))
+                return;
+            split(from, to);
+            // a leading bin is numeric and followed by the chromosome, numeric chromosomes have a numeric start after them
+            int first = count >= 5 && isNumber(0) && !isNumber(1) && isNumber(2) && isNumber(3) ? 1 : 0;
+            if (count - first < 4)
+                throw new IOException("malformed BED line at byte " + (offset + from) + ": " + text(from, to));
+            try {
+                int start = parseInt(first + 1);
+                int end = parseInt(first + 2);
+                int name = first + 3;
+                int score = count > first + 4 && !isDot(first + 4) ? parseInt(first + 4) : 0;
+                String strand = count > first + 5 ? getStrand(first + 5) : null;
+                int thickStart = count > first + 6 ? parseInt(first + 6) : start;
+                int thickEnd = count > first + 7 ? parseInt(first + 7) : end;
+                store.add(buffer, starts[name], ends[name] - starts[name], getChromosome(first),
+                        start, end, score, strand, thickStart, thickEnd);
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                throw new IOException("malformed BED line at byte " + (offset + from) + ": " + text(from, to), e);
+            }
+        }
+
+        /**
+         * splits the line at tabs, or at runs of spaces if the line has no tabs
+         * @param from - first byte of the line
+         * @param to - byte after the last one of the line
+         */
+        private void split(int from, int to) {
+            byte separator = ' ';
+            for (int i = from; i < to; i++) {
+                if (buffer.get(i) == '\t') {
+                    separator = '\t';
+                    break;
+                }
+            }
+            count = 0;
+            int fieldStart = from;
+            for (int i = from; i <= to && count < MAX_FIELDS; i++) {
+                if (i == to || buffer.get(i) == separator) {
+                    if (separator == '\t' || i > fieldStart) {
+                        starts[count] = fieldStart;
+                        ends[count++] = i;
+                    }
+                    fieldStart = i + 1;
+                }
+            }
+        }
+
+        private boolean startsWith(int from, int to, String prefix) {
+            if (to - from < prefix.length())
+                return false;
+            for (int i = 0; i < prefix.length(); i++) {
+                if (buffer.get(from + i) != prefix.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+
+        private boolean isNumber(int field) {
+            if (starts[field] == ends[field])
+                return false;
+            for (int i = starts[field]; i < ends[field]; i++) {
+                byte b = buffer.get(i);
+                if (b < '0' || b > '9')
+                    return false;
+            }
+            return true;
+        }
+
+        private boolean isDot(int field) {
+            return ends[field] - starts[field] == 1 && buffer.get(starts[field]) == '.';
+        }
+
+        private int parseInt(int field) {
+            int i = starts[field];
+            int to = ends[field];
+            boolean negative = i < to && buffer.get(i) == '-';
+            if (negative)
+                i++;
+            if (i == to)
+                throw new NumberFormatException("empty number");
+            long value = 0;
+            for (; i < to; i++) {
+                byte b = buffer.get(i);
+                if (b < '0' || b > '9')
+                    throw new NumberFormatException("not a number");
+                value = 10 * value + (b - '0');
+                if (value > Integer.MAX_VALUE + 1L)
+                    throw new NumberFormatException("number out of range");
+            }
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE)
+                throw new NumberFormatException("number out of range");
+            return (int) value;
+        }
+
+        /**
+         *
+         * @param field - chromosome field
+         * @return - chromosome, the string of the previous line is reused when the bytes are equal
+         */
+        private String getChromosome(int field) {
+            int length = ends[field] - starts[field];
+            boolean same = length == lastChromosome.length;
+            for (int i = 0; same && i < length; i++) {
+                same = buffer.get(starts[field] + i) == lastChromosome[i];
+            }
+            if (!same) {
+                lastChromosome = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    lastChromosome[i] = buffer.get(starts[field] + i);
+                }
+                chromosome = BACStore.decode(buffer, starts[field], length);
+            }
+            return chromosome;
+        }
+
+        private String getStrand(int field) {
+            if (ends[field] - starts[field] == 1) {
+                byte b = buffer.get(starts[field]);
+                if (b == '+')
+                    return "+";
+                if (b == '-')
+                    return "-";
+                if (b == '.')
+                    return ".";
+            }
+            return BACStore.decode(buffer, starts[field], ends[field] - starts[field]);
+        }
+
+        private String text(int from, int to) {
+            return BACStore.decode(buffer, from, Math.min(to - from, 200));
+        }
+    }
+}
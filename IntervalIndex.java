@@ -0,0 +1,166 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.common;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * Static interval index over rangeable items.
+ * Items are sorted by start coordinate and a segment tree over the sorted array keeps the maximum
+ * end coordinate of every subrange, so a query costs O(log n + k) for k reported items.
+ * Columns and the tree are int buffers, so the index can run over a memory-mapped file
+ */
+public class IntervalIndex<T extends Rangeable> {
+    private final IntFunction<T> items;
+    private final IntBuffer starts;
+    private final int from;
+    private final int to;
+    private final IntBuffer maxEnds;
+    private final int leaves;
+
+    /**
+     *
+     * @param values - items to index
+     */
+    public IntervalIndex(Collection<? extends T> values) {
+        this(sorted(values));
+    }
+
+    private IntervalIndex(List<T> sorted) {
+        this(IntBuffer.wrap(starts(sorted)), 0, sorted.size(),
+                getMaxEnds(IntBuffer.wrap(ends(sorted)), 0, sorted.size()), sorted::get);
+    }
+
+    /**
+     * Constructor over columns sorted by start, e.g. columns of a columnar store
+     * @param starts - start coordinates, sorted within [from, to)
+     * @param from - first position of the indexed range
+     * @param to - position after the last one of the indexed range
+     * @param maxEnds - maximum end tree of the range built by getMaxEnds
+     * @param items - item at a position
+     */
+    public IntervalIndex(IntBuffer starts, int from, int to, IntBuffer maxEnds, IntFunction<T> items) {
+        this.items = items;
+        this.starts = starts;
+        this.from = from;
+        this.to = to;
+        this.maxEnds = maxEnds;
+        this.leaves = maxEnds.limit() / 2;
+    }
+
+    /**
+     * builds the segment tree of maximum end coordinates, leaves are padded to a power of two
+     * @param ends - end coordinates
+     * @param from - first position of the indexed range
+     * @param to - position after the last one of the indexed range
+     * @return - tree, node 1 is the root and node n has children 2n and 2n + 1
+     */
+    public static IntBuffer getMaxEnds(IntBuffer ends, int from, int to) {
+        int size = to - from;
+        int leaves = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        int[] maxEnds = new int[2 * leaves];
+        for (int leaf = 0; leaf < leaves; leaf++) {
+            maxEnds[leaves + leaf] = leaf < size ? ends.get(from + leaf) : Integer.MIN_VALUE;
+        }
+        maxEnds[0] = Integer.MIN_VALUE;
+        for (int node = leaves - 1; node > 0; node--) {
+            maxEnds[node] = Math.max(maxEnds[2 * node], maxEnds[2 * node + 1]);
+        }
+        return IntBuffer.wrap(maxEnds);
+    }
+
+    private static <T extends Rangeable> List<T> sorted(Collection<? extends T> values) {
+        List<T> sorted = new ArrayList<>(values);
+        sorted.sort(Comparator.comparingInt(Rangeable::getStart).thenComparingInt(Rangeable::getEnd));
+        return sorted;
+    }
+
+    private static int[] starts(List<? extends Rangeable> sorted) {
+        return sorted.stream().mapToInt(Rangeable::getStart).toArray();
+    }
+
+    private static int[] ends(List<? extends Rangeable> sorted) {
+        return sorted.stream().mapToInt(Rangeable::getEnd).toArray();
+    }
+
+    /**
+     *
+     * @return - number of indexed items
+     */
+    public int size() {
+        return to - from;
+    }
+
+    /**
+     * collects items with startAfter < start <= startAtMost and end >= endAtLeast in start order
+     * @param startAfter - exclusive lower bound of the start coordinate
+     * @param startAtMost - inclusive upper bound of the start coordinate
+     * @param endAtLeast - inclusive lower bound of the end coordinate
+     * @param result - list the matching items are added to
+     */
+    public void query(int startAfter, int startAtMost, int endAtLeast, List<? super T> result) {
+        query(startAfter, startAtMost, endAtLeast, position -> result.add(items.apply(position)));
+    }
+
+    /**
+     * reports positions of items with startAfter < start <= startAtMost and end >= endAtLeast in start order
+     * @param startAfter - exclusive lower bound of the start coordinate
+     * @param startAtMost - inclusive upper bound of the start coordinate
+     * @param endAtLeast - inclusive lower bound of the end coordinate
+     * @param positions - consumer of the matching positions
+     */
+    public void query(int startAfter, int startAtMost, int endAtLeast, IntConsumer positions) {
+        int first = upperBound(startAfter);
+        int last = upperBound(startAtMost);
+        if (first < last)
+            collect(1, 0, leaves, first, last, endAtLeast, positions);
+    }
+
+    /**
+     *
+     * @param value - coordinate
+     * @return - offset of the first item which starts after the coordinate
+     */
+    private int upperBound(int value) {
+        int low = 0;
+        int high = to - from;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts.get(from + mid) <= value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * walks the subtrees whose maximum end reaches endAtLeast
+     * @param node - segment tree node
+     * @param left - first item covered by the node
+     * @param right - item after the last one covered by the node
+     * @param first - first item of the start range
+     * @param last - item after the last one of the start range
+     * @param endAtLeast - inclusive lower bound of the end coordinate
+     * @param positions - consumer of the matching positions
+     */
+    private void collect(int node, int left, int right, int first, int last, int endAtLeast, IntConsumer positions) {
+        if (right <= first || left >= last || maxEnds.get(node) < endAtLeast)
+            return;
+        if (right - left == 1) {
+            positions.accept(from + left);
+            return;
+        }
+        int mid = (left + right) >>> 1;
+        collect(2 * node, left, mid, first, last, endAtLeast, positions);
+        collect(2 * node + 1, mid, right, first, last, endAtLeast, positions);
+    }
+}
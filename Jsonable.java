@@ -4,9 +4,25 @@
 
 package org.nyumc.isg.lims.common;
 
+import com.google.gson.stream.JsonWriter;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+
 /**
  * Jsonable interface
  */
 public interface Jsonable {
     String toJson();
+
+    /**
+     * writes json representation to the stream, empty representation is skipped
+     * @param writer - json writer
+     * @throws IOException - IO exception
+     */
+    default void toJson(JsonWriter writer) throws IOException {
+        String value = toJson();
+        if (StringUtils.isNotEmpty(value))
+            writer.jsonValue(value);
+    }
 }
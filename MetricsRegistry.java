@@ -0,0 +1,56 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+/**
+ * Receiver of BAC tree metrics, see BACTree.setMetricsRegistry.
+ * Callbacks are made on the thread which built the tree or produced its paths or json, so implementations
+ * must be thread safe. Metrics are not collected while the NOOP registry is set
+ */
+public interface MetricsRegistry {
+    /**
+     * registry which disables metrics collection
+     */
+    MetricsRegistry NOOP = new MetricsRegistry() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void searched(SearchMetrics metrics) {
+        }
+    };
+
+    /**
+     *
+     * @return - true, if metrics are collected
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    /**
+     * called once the tree has been built
+     * @param metrics - metrics of the tree
+     */
+    void searched(SearchMetrics metrics);
+
+    /**
+     * called every time all paths of the tree have been enumerated
+     * @param metrics - metrics of the tree
+     * @param nanos - time spent enumerating the paths
+     */
+    default void pathsEnumerated(SearchMetrics metrics, long nanos) {
+    }
+
+    /**
+     * called every time the tree has been written as json
+     * @param metrics - metrics of the tree
+     * @param nanos - time spent writing the json
+     */
+    default void jsonWritten(SearchMetrics metrics, long nanos) {
+    }
+}
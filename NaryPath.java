@@ -4,8 +4,12 @@
 
 package org.nyumc.isg.lims.common;
 
+import com.google.gson.stream.JsonWriter;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
@@ -14,7 +18,7 @@ public class NaryPath<T extends NaryNode>  implements Jsonable, Markable, Rangea
     /**
      * Comparator class
      */
-    static class PathComparator implements Comparator<NaryPath> {
+    public static class PathComparator implements Comparator<NaryPath> {
         public int compare(NaryPath path1, NaryPath path2) {
             int range1 = path1.getEnd() - path1.getStart();
             int range2 = path2.getEnd() - path2.getStart();
@@ -26,6 +30,20 @@ public class NaryPath<T extends NaryNode>  implements Jsonable, Markable, Rangea
         }
     }
 
+    /**
+     * Default scorer, ranks paths the same way as PathComparator: by node count, then by span.
+     * Node count never decreases along a path, so it bounds the score of any extension
+     */
+    public static class NodeCountScorer implements PathScorer {
+        public long score(NaryPath path) {
+            return ((long) path.getNodes().size() << 32) | (path.getTotalLength() & 0xffffffffL);
+        }
+
+        public long lowerBound(NaryPath path) {
+            return (long) path.getNodes().size() << 32;
+        }
+    }
+
     /**
      * default constructor
      */
@@ -61,6 +79,15 @@ public class NaryPath<T extends NaryNode>  implements Jsonable, Markable, Rangea
         return false;
     }
 
+    /**
+     *
+     * @return - hash code consistent with equals
+     */
+    @Override
+    public int hashCode(){
+        return 31 * (getEnd() - getStart()) + getNodes().size();
+    }
+
     /**
      * removes last node
      */
@@ -87,19 +114,27 @@ public class NaryPath<T extends NaryNode>  implements Jsonable, Markable, Rangea
      * @return - json string
      */
     public String toJson(){
-        String json =  "[";
-        for (T node: nodes){
-            String value = node.toJson();
-            if (StringUtils.isNotEmpty(value)) {
-                json += value;
-                json += ",";
-            }
+        StringWriter json = new StringWriter();
+        try {
+            toJson(new JsonWriter(json));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        if (StringUtils.isNotEmpty(json)){
-            json = json.substring(0,json.lastIndexOf(","));
+        return json.toString();
+    }
+
+    /**
+     * writes path nodes to the stream as json array
+     * @param writer - json writer
+     * @throws IOException - IO exception
+     */
+    @Override
+    public void toJson(JsonWriter writer) throws IOException {
+        writer.beginArray();
+        for (T node: nodes){
+            node.toJson(writer);
         }
-        json += "]";
-        return json;
+        writer.endArray();
     }
 
     /**
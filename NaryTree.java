@@ -4,13 +4,18 @@
 
 package org.nyumc.isg.lims.common;
 
-import org.apache.commons.lang3.StringUtils;
+import com.google.gson.stream.JsonWriter;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class NaryTree<T extends NaryNode>  implements Jsonable{
+public class NaryTree<T extends NaryNode>  implements Jsonable, Iterable<NaryPath>{
 
     T root;
 
@@ -36,50 +41,209 @@ public class NaryTree<T extends NaryNode>  implements Jsonable{
      */
     @Override
     public String toString() {
-        List<NaryPath> allPaths = getAllPaths();
-        String str = StringUtils.EMPTY;
-        for(NaryPath path:allPaths){
-            str += path + "\n";
+        StringBuilder str = new StringBuilder();
+        for(NaryPath path:getAllPaths()){
+            str.append(path).append("\n");
         }
-        return str;
+        return str.toString();
     }
 
     /**
-     *
+     * nodes may be shared by several parents (DAG), such node is enumerated on every path through it
      * @return - all paths for the tree
      */
     public List<NaryPath> getAllPaths(){
-        List<NaryPath> allPaths = new ArrayList<>();
-        if (root != null) {
-            NaryPath path = new NaryPath<NaryNode>();
-            buildPath(root, path, allPaths);
-        }
-        allPaths.removeIf(p->p.isMarked());
-        Collections.sort(allPaths,new NaryPath.PathComparator());
+        List<NaryPath> allPaths = paths().collect(Collectors.toList());
+        allPaths.sort(new NaryPath.PathComparator());
         return allPaths;
     }
 
+    /**
+     *
+     * @param k - number of paths
+     * @return - k best paths, ranked the same way as getAllPaths
+     */
+    public List<NaryPath> getTopPaths(int k){
+        return getTopPaths(k, new NaryPath.NodeCountScorer());
+    }
+
+    /**
+     * branch and bound search for the k best paths, subtrees whose score lower bound
+     * can not beat the current k-th best path are not visited
+     * @param k - number of paths
+     * @param scorer - path scorer
+     * @return - k best paths by score, ties in depth first order
+     */
+    public List<NaryPath> getTopPaths(int k, PathScorer scorer){
+        TopPaths top = new TopPaths(k, scorer);
+        if (root != null && k > 0) {
+            searchTopPaths(root, new NaryPath<NaryNode>(), top);
+        }
+        List<RankedPath> ranked = new ArrayList<>(top.heap);
+        Collections.sort(ranked);
+        List<NaryPath> paths = new ArrayList<>();
+        for (RankedPath rankedPath : ranked) {
+            paths.add(rankedPath.path);
+        }
+        return paths;
+    }
+
     /**
      *
      * @param node - start node
      * @param path - path to build
-     * @param allPaths - all paths so far
+     * @param top - best paths so far
      */
-    private void buildPath(NaryNode node, NaryPath path, List<NaryPath> allPaths){
+    private void searchTopPaths(NaryNode node, NaryPath path, TopPaths top){
         path.nodes.add(node);
+        if (top.canImprove(top.scorer.lowerBound(path))) {
+            if (node.getChildren().isEmpty() || node.isMarked()) {
+                NaryPath np = new NaryPath(path);
+                if (np.nodes.size() > 1 && top.seen.add(np) && !np.isMarked()) {
+                    top.offer(np);
+                }
+            } else {
+                for (NaryNode child : node.getChildren()) {
+                    searchTopPaths(child, path, top);
+                }
+            }
+        }
+        path.removeLast();
+    }
 
-        if (node.getChildren().isEmpty()  || node.isMarked()){
-            NaryPath np = new NaryPath(path);
-            if(StringUtils.isNotEmpty(np.toJson()) && !allPaths.contains(np)) {
-                allPaths.add(np);
+    /**
+     * Path with its score and depth first sequence number
+     */
+    private static class RankedPath implements Comparable<RankedPath> {
+        private final NaryPath path;
+        private final long score;
+        private final long sequence;
+
+        RankedPath(NaryPath path, long score, long sequence) {
+            this.path = path;
+            this.score = score;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(RankedPath other) {
+            int result = Long.compare(score, other.score);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Bounded max-heap of the best paths found so far
+     */
+    private static class TopPaths {
+        private final int k;
+        private final PathScorer scorer;
+        private final PriorityQueue<RankedPath> heap;
+        private final Set<NaryPath> seen = new HashSet<>();
+        private long sequence;
+
+        TopPaths(int k, PathScorer scorer) {
+            this.k = k;
+            this.scorer = scorer;
+            this.heap = new PriorityQueue<>(Math.max(1, k), Collections.reverseOrder());
+        }
+
+        boolean canImprove(long bound) {
+            return heap.size() < k || bound < heap.peek().score;
+        }
+
+        void offer(NaryPath path) {
+            long score = scorer.score(path);
+            if (canImprove(score)) {
+                if (heap.size() == k)
+                    heap.poll();
+                heap.add(new RankedPath(path, score, sequence));
             }
-            path.removeLast();
-            return;
+            sequence++;
         }
-        for (NaryNode child:node.getChildren()){
-            buildPath(child,path,allPaths);
+    }
+
+    /**
+     * lazily walks the tree, paths are produced in depth first order and are not ranked
+     * @return - stream of unmarked, distinct paths
+     */
+    public Stream<NaryPath> paths(){
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     *
+     * @return - iterator over unmarked, distinct paths in depth first order
+     */
+    @Override
+    public Iterator<NaryPath> iterator(){
+        return new PathIterator();
+    }
+
+    /**
+     * Depth first path iterator.
+     * A leaf path is dropped when it is marked or equals a path seen before, marked paths included,
+     * which keeps the first path of every (node count, span) in depth first order
+     */
+    private class PathIterator implements Iterator<NaryPath> {
+        private final NaryPath<NaryNode> path = new NaryPath<>();
+        private final Deque<Iterator<NaryNode>> stack = new ArrayDeque<>();
+        private final Set<NaryPath> seen = new HashSet<>();
+        private NaryPath next;
+
+        PathIterator() {
+            if (root != null)
+                visit(root);
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public NaryPath next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            NaryPath current = next;
+            advance();
+            return current;
+        }
+
+        /**
+         * adds node to the current path, leaf paths are offered as the next path
+         * @param node - node
+         * @return - true, if the next path has been found
+         */
+        private boolean visit(NaryNode node) {
+            path.nodes.add(node);
+            if (node.getChildren().isEmpty() || node.isMarked()) {
+                NaryPath leafPath = new NaryPath(path);
+                path.removeLast();
+                if (leafPath.nodes.size() > 1 && seen.add(leafPath) && !leafPath.isMarked()) {
+                    next = leafPath;
+                    return true;
+                }
+                return false;
+            }
+            stack.push(node.getChildren().iterator());
+            return false;
+        }
+
+        private void advance() {
+            next = null;
+            while (!stack.isEmpty()) {
+                Iterator<NaryNode> children = stack.peek();
+                if (children.hasNext()) {
+                    if (visit(children.next()))
+                        return;
+                } else {
+                    stack.pop();
+                    path.removeLast();
+                }
+            }
         }
-        path.removeLast();
     }
 
     /**
@@ -87,18 +251,38 @@ public class NaryTree<T extends NaryNode>  implements Jsonable{
      * @return - json string
      */
     public String toJson(){
-        List<NaryPath> allPaths = getAllPaths();
-
-        String json = "[";
-        for (NaryPath path : allPaths){
-            json += path.toJson() + ",";
+        StringWriter json = new StringWriter();
+        try {
+            toJson(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        if(json.endsWith(",")){
-            json = json.substring(0, json.lastIndexOf(","));
+        return json.toString();
+    }
+
+    /**
+     * streams the paths in depth first order to the writer as json array of arrays
+     * @param out - writer
+     * @throws IOException - IO exception
+     */
+    public void toJson(Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        toJson(writer);
+        writer.flush();
+    }
 
+    /**
+     * writes the paths as the iterator produces them, in depth first order, without collecting them first
+     * @param writer - json writer
+     * @throws IOException - IO exception
+     */
+    @Override
+    public void toJson(JsonWriter writer) throws IOException {
+        writer.beginArray();
+        for (NaryPath path : this){
+            path.toJson(writer);
         }
-        json += "]";
-        return json;
+        writer.endArray();
     }
 
 }
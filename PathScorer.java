@@ -0,0 +1,24 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.common;
+
+/**
+ * Path scorer interface, smaller score ranks first
+ */
+public interface PathScorer {
+    /**
+     *
+     * @param path - complete root to leaf path
+     * @return - path score
+     */
+    long score(NaryPath path);
+
+    /**
+     *
+     * @param path - partial path from the root
+     * @return - lower bound of the score of any path that extends the partial path
+     */
+    long lowerBound(NaryPath path);
+}
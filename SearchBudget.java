@@ -0,0 +1,95 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work budget of a BAC tree search: a deadline, a maximum number of tree nodes and a cancellation flag.
+ * The deadline runs from the creation of the budget, so a budget created when a request arrives also
+ * covers the time the request waited. Once the budget is exhausted the search stops expanding nodes and
+ * the tree keeps the complete paths found so far, see BACTree.isPartial. Queries of a SqlBACSource are
+ * cancelled at the deadline, see SqlBACSource.setBudget
+ */
+public class SearchBudget {
+    private final long deadline;
+    private final boolean timed;
+    private final int maxNodes;
+    private volatile boolean cancelled;
+
+    /**
+     * Constructor
+     * @param timeoutMillis - time budget in milliseconds, 0 for no deadline
+     * @param maxNodes - maximum number of tree nodes, 0 for no limit
+     */
+    public SearchBudget(long timeoutMillis, int maxNodes) {
+        this.timed = timeoutMillis > 0;
+        this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     *
+     * @param timeoutMillis - time budget in milliseconds
+     * @return - budget with a deadline only
+     */
+    public static SearchBudget withTimeout(long timeoutMillis) {
+        return new SearchBudget(timeoutMillis, 0);
+    }
+
+    /**
+     *
+     * @param maxNodes - maximum number of tree nodes
+     * @return - budget with a node limit only
+     */
+    public static SearchBudget withMaxNodes(int maxNodes) {
+        return new SearchBudget(0, maxNodes);
+    }
+
+    /**
+     * cancels the searches using the budget, may be called from any thread
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     *
+     * @return - true, if the budget has been cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     *
+     * @return - remaining time in milliseconds, Long.MAX_VALUE if there is no deadline
+     */
+    public long getRemainingMillis() {
+        if (!timed)
+            return Long.MAX_VALUE;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     *
+     * @return - JDBC query timeout in seconds which ends no earlier than the deadline, 0 if there is no deadline
+     */
+    int getQueryTimeout() {
+        if (!timed)
+            return 0;
+        long seconds = (getRemainingMillis() + 999) / 1000;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, seconds));
+    }
+
+    /**
+     *
+     * @param nodes - number of tree nodes created so far
+     * @return - true, if the search must stop
+     */
+    boolean isExhausted(int nodes) {
+        return cancelled || (maxNodes > 0 && nodes >= maxNodes) || (timed && System.nanoTime() - deadline >= 0);
+    }
+}
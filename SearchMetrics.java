@@ -0,0 +1,174 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+/**
+ * Metrics of a single BAC tree: the search which built it and the paths and json produced from it.
+ * Queries and rows are those of the bac source, i.e. SQL queries and result rows for SqlBACSource,
+ * in RECURSIVE_CTE mode rows are the edges of the tree
+ */
+public class SearchMetrics {
+    private final String chromosome;
+    private final int open;
+    private final int close;
+    private final BACTree.Mode mode;
+    long queries;
+    long rows;
+    long nodes;
+    long markedNodes;
+    int depth;
+    long searchNanos;
+    long findChildrenNanos;
+    long leafPaths;
+    long paths;
+    long pathsNanos;
+    long jsonNanos;
+
+    /**
+     * Constructor
+     * @param chromosome - chromosome
+     * @param open - locus open position
+     * @param close - locus close position
+     * @param mode - tree construction mode
+     */
+    SearchMetrics(String chromosome, int open, int close, BACTree.Mode mode) {
+        this.chromosome = chromosome;
+        this.open = open;
+        this.close = close;
+        this.mode = mode;
+    }
+
+    /**
+     *
+     * @return - chromosome
+     */
+    public String getChromosome() {
+        return chromosome;
+    }
+
+    /**
+     *
+     * @return - locus open position
+     */
+    public int getOpen() {
+        return open;
+    }
+
+    /**
+     *
+     * @return - locus close position
+     */
+    public int getClose() {
+        return close;
+    }
+
+    /**
+     *
+     * @return - tree construction mode
+     */
+    public BACTree.Mode getMode() {
+        return mode;
+    }
+
+    /**
+     *
+     * @return - number of queries issued to the bac source
+     */
+    public long getQueries() {
+        return queries;
+    }
+
+    /**
+     *
+     * @return - number of rows fetched from the bac source
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     *
+     * @return - number of distinct nodes of the tree, root included
+     */
+    public long getNodes() {
+        return nodes;
+    }
+
+    /**
+     *
+     * @return - number of marked (dead end) nodes
+     */
+    public long getMarkedNodes() {
+        return markedNodes;
+    }
+
+    /**
+     *
+     * @return - maximum number of bacs on a root to leaf path
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     *
+     * @return - time spent building the tree in nanoseconds
+     */
+    public long getSearchNanos() {
+        return searchNanos;
+    }
+
+    /**
+     *
+     * @return - time spent in findChildren in nanoseconds, 0 unless the tree was built by the per node search
+     */
+    public long getFindChildrenNanos() {
+        return findChildrenNanos;
+    }
+
+    /**
+     *
+     * @return - number of root to leaf paths walked by the last path enumeration, marked and duplicate paths included
+     */
+    public long getLeafPaths() {
+        return leafPaths;
+    }
+
+    /**
+     *
+     * @return - number of distinct unmarked paths returned by the last path enumeration
+     */
+    public long getPaths() {
+        return paths;
+    }
+
+    /**
+     *
+     * @return - time spent enumerating paths (getAllPaths) in nanoseconds, all calls
+     */
+    public long getPathsNanos() {
+        return pathsNanos;
+    }
+
+    /**
+     *
+     * @return - time spent writing json in nanoseconds, all calls
+     */
+    public long getJsonNanos() {
+        return jsonNanos;
+    }
+
+    /**
+     *
+     * @return - string
+     */
+    @Override
+    public String toString() {
+        return chromosome + ":" + open + "-" + close + " " + mode + " queries=" + queries + " rows=" + rows +
+                " nodes=" + nodes + " marked=" + markedNodes + " depth=" + depth + " searchNanos=" + searchNanos +
+                " findChildrenNanos=" + findChildrenNanos + " leafPaths=" + leafPaths + " paths=" + paths +
+                " pathsNanos=" + pathsNanos + " jsonNanos=" + jsonNanos;
+    }
+}
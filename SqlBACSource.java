@@ -0,0 +1,485 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BAC source that queries lims.bac_[source] table for every node of the tree.
+ * Statements are fully bound, prepared on first use and reused until the source is closed,
+ * so a source is meant to be used by a single thread, e.g. for a single tree.
+ * Sources sharing a semaphore run at most as many queries at once as it has permits.
+ * With a search budget set, the timeout of every query is taken from the time remaining when it starts and
+ * the query is cancelled once the deadline passes, JDBC timeouts count whole seconds so the cancellation
+ * is what enforces deadlines closer than a second
+ */
+public class SqlBACSource implements BACSource, AutoCloseable {
+    private final Connection connection;
+    private final String table;
+    private final Semaphore permits;
+    private PreparedStatement rootStatement;
+    private PreparedStatement childStatement;
+    private PreparedStatement treeStatement;
+    private PreparedStatement startsStatement;
+    private int maxLength = -1;
+    private int queryTimeout;
+    private SearchBudget budget;
+
+    private static final ScheduledExecutorService CANCELLER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "bac-query-canceller");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Query run on a prepared statement
+     * @param <T> - result type
+     */
+    private interface Query<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Constructor
+     * @param connection - database connection
+     * @param table - database table (bac library) name
+     */
+    public SqlBACSource(Connection connection, String table) {
+        this(connection, table, null);
+    }
+
+    /**
+     * Constructor
+     * @param connection - database connection
+     * @param table - database table (bac library) name
+     * @param permits - permits of concurrent queries, null for no limit
+     */
+    public SqlBACSource(Connection connection, String table, Semaphore permits) {
+        this.connection = connection;
+        this.table = table;
+        this.permits = permits;
+    }
+
+    /**
+     *  finds bacs for the given parent bac, that cover [remaining] region
+     * @param parent - parent bac, null for the root of the tree
+     * @param chr - chromosome
+     * @param start - start coordinate of the region
+     * @param end - end coordinate of the region
+     * @return - list of bacs
+     * @throws SQLException - SQL exception
+     */
+    @Override
+    public List<BAC> findBACs(BAC parent, String chr, int start, int end) throws SQLException {
+        final PreparedStatement ps;
+        if (parent == null) {
+            // 1) try to find single bac solutions that cover the region completely
+            //    ------------------------------------------------------- (RP11)
+            //      ----------------------------------------------------------------------         (CH17)
+            //         |---------------------------------------------|
+            // 2) start == end: try to find single bacs that for each library cover most of the region
+            //    ---------------------------------- (RP11)
+            //      ------------------------         (CH17)
+            //         |---------------------------------------------|
+            if (rootStatement == null)
+                rootStatement = connection.prepareStatement("select * from lims." + table +
+                        " where chromosome = ? and start_loc <= ? and end_loc >= ? order by start_loc, end_loc");
+            ps = rootStatement;
+            ps.setString(1, chr);
+            ps.setInt(2, start);
+            ps.setInt(3, start == end ? start + 1 : end);
+        } else {
+            // 3) start == end: try to find bacs that for each library cover most of the remaining region
+            //                     ---------------------------
+            //      ---------------------
+            //         |---------------------------------------------|
+            // 4) try to find bacs that for each library can complete the solution
+            //                                    ------------------------
+            //                     ---------------------------
+            //      ---------------------
+            //         |---------------------------------------------|
+            if (childStatement == null)
+                childStatement = connection.prepareStatement("select * from lims." + table +
+                        " where chromosome = ? and start_loc <= ? and end_loc >= ? and start_loc > ? and end_loc > ?" +
+                        " and name like ? order by start_loc, end_loc");
+            ps = childStatement;
+            ps.setString(1, chr);
+            ps.setInt(2, start);
+            ps.setInt(3, end);
+            ps.setInt(4, parent.getStart());
+            ps.setInt(5, parent.getEnd());
+            ps.setString(6, parent.getLibrary() + "%");
+        }
+
+        return execute(ps, () -> {
+            List<BAC> bacs = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    bacs.add(new BAC(rs));
+                }
+            }
+            return bacs;
+        });
+    }
+
+    /**
+     * fetches the locus window, padded by the largest bac length which is queried once per source
+     * @param chr - chromosome
+     * @param open - locus open position
+     * @param close - locus close position
+     * @return - store of candidate bacs
+     * @throws SQLException - SQL exception
+     */
+    @Override
+    public BACStore findWindow(String chr, int open, int close) throws SQLException {
+        int maxLength = getMaxLength();
+        return findStarts(chr, (int) Math.max(Integer.MIN_VALUE, (long) open - maxLength),
+                (int) Math.min(Integer.MAX_VALUE, (long) close + maxLength));
+    }
+
+    /**
+     *
+     * @param chr - chromosome
+     * @param from - smallest start coordinate
+     * @param to - largest start coordinate
+     * @return - store of the bacs
+     * @throws SQLException - SQL exception
+     */
+    @Override
+    public BACStore findStarts(String chr, int from, int to) throws SQLException {
+        if (startsStatement == null)
+            startsStatement = connection.prepareStatement("select * from lims." + table +
+                    " where chromosome = ? and start_loc >= ? and start_loc <= ?");
+        startsStatement.setString(1, chr);
+        startsStatement.setInt(2, from);
+        startsStatement.setInt(3, to);
+        return execute(startsStatement, () -> BACStore.read(startsStatement));
+    }
+
+    /**
+     * queried once per source
+     * @return - largest bac length of the table
+     * @throws SQLException - SQL exception
+     */
+    @Override
+    public int getMaxLength() throws SQLException {
+        if (maxLength < 0) {
+            try (PreparedStatement ps = connection.prepareStatement("select max(end_loc - start_loc) from lims." + table)) {
+                maxLength = execute(ps, () -> {
+                    try (ResultSet rs = ps.executeQuery()) {
+                        return rs.next() ? rs.getInt(1) : 0;
+                    }
+                });
+            }
+        }
+        return maxLength;
+    }
+
+    /**
+     * runs the whole tree search in the database as a single recursive query.
+     * The query walks the same edges as the per node search: the root children are the bacs covering the
+     * locus or, if there are none, the bacs covering the open position, a node is followed by the bacs of its
+     * library which start after its start, no later than its end and end after its end, restricted to the bacs
+     * reaching the close if there are any. Root edges have an empty parent name. Every edge is returned once, so a bac
+     * reached by several paths is expanded once. The recursion ends as every edge ends further right, the
+     * depth bound is applied to the returned edges by the shortest path from the root
+     * @param chr - chromosome
+     * @param open - locus open position
+     * @param close - locus close position
+     * @param maxDepth - maximum number of bacs in a path
+     * @return - root of the tree, nodes which can not reach the close are marked
+     * @throws SQLException - SQL exception
+     */
+    public BACNode findTree(String chr, int open, int close, int maxDepth) throws SQLException {
+        if (treeStatement == null) {
+            // finishes = 1 if the bac is followed by a bac of its library which reaches the close
+            String finishes = "case when exists (select 1 from lims." + table + " F where F.chromosome = ?" +
+                    " and F.name like concat(substring(%1$s.name, 1, 3), '%%') and F.start_loc > %1$s.start_loc" +
+                    " and F.start_loc <= %1$s.end_loc and F.end_loc >= ?) then 1 else 0 end";
+            treeStatement = connection.prepareStatement("with recursive edges" +
+                    " (parent_name, parent_start, parent_end, name, start_loc, end_loc, finishes) as (" +
+                    // a root edge has an empty parent name, typed by the name column
+                    " select substring(A.name, 1, 0), A.start_loc, A.end_loc," +
+                    " A.name, A.start_loc, A.end_loc, " + String.format(finishes, "A") +
+                    " from lims." + table + " A" +
+                    " where A.chromosome = ? and A.start_loc <= ? and A.end_loc > ?" +
+                    " and (A.end_loc >= ? or not exists (select 1 from lims." + table + " F" +
+                    " where F.chromosome = ? and F.start_loc <= ? and F.end_loc >= ?))" +
+                    " union" +
+                    " select C.name, C.start_loc, C.end_loc, N.name, N.start_loc, N.end_loc, " +
+                    String.format(finishes, "N") +
+                    " from edges C join lims." + table + " N on N.chromosome = ?" +
+                    " and N.name like concat(substring(C.name, 1, 3), '%')" +
+                    " and N.start_loc > C.start_loc and N.start_loc <= C.end_loc and N.end_loc > C.end_loc" +
+                    " where C.end_loc < ? and (N.end_loc >= ? or C.finishes = 0))" +
+                    " select E.parent_name, E.parent_start, E.parent_end, T.* from edges E" +
+                    " join lims." + table + " T on T.chromosome = ? and T.name = E.name" +
+                    " and T.start_loc = E.start_loc and T.end_loc = E.end_loc" +
+                    " order by T.start_loc, T.end_loc");
+        }
+        // a single position is covered by the bacs which end after it
+        int cover = open == close ? open + 1 : close;
+        int parameter = 1;
+        // anchor: finishes, root bacs, no bac covering the locus
+        treeStatement.setString(parameter++, chr);
+        treeStatement.setInt(parameter++, cover);
+        treeStatement.setString(parameter++, chr);
+        treeStatement.setInt(parameter++, open);
+        treeStatement.setInt(parameter++, open);
+        treeStatement.setInt(parameter++, cover);
+        treeStatement.setString(parameter++, chr);
+        treeStatement.setInt(parameter++, open);
+        treeStatement.setInt(parameter++, cover);
+        // recursive part: finishes, next bacs
+        treeStatement.setString(parameter++, chr);
+        treeStatement.setInt(parameter++, cover);
+        treeStatement.setString(parameter++, chr);
+        treeStatement.setInt(parameter++, cover);
+        treeStatement.setInt(parameter++, cover);
+        // bac rows
+        treeStatement.setString(parameter, chr);
+
+        BACNode root = new BACNode();
+        Map<String, BACNode> nodes = new HashMap<>();
+        // children keys of every parent key in row order, the root key is empty
+        Map<String, List<String>> children = new HashMap<>();
+        execute(treeStatement, () -> {
+            try (ResultSet rs = treeStatement.executeQuery()) {
+                while (rs.next()) {
+                    BAC bac = new BAC(rs);
+                    String key = getKey(bac.getName(), bac.getStart(), bac.getEnd());
+                    nodes.computeIfAbsent(key, k -> new BACNode(bac));
+                    String parentName = rs.getString("parent_name");
+                    String parentKey = parentName.isEmpty() ? ""
+                            : getKey(parentName, rs.getInt("parent_start"), rs.getInt("parent_end"));
+                    children.computeIfAbsent(parentKey, k -> new ArrayList<>()).add(key);
+                }
+            }
+            return null;
+        });
+        // breadth first from the root, a node is expanded if its shortest path leaves room for another bac
+        nodes.put("", root);
+        Map<String, Integer> depths = new HashMap<>();
+        depths.put("", 0);
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add("");
+        while (!queue.isEmpty()) {
+            String parentKey = queue.poll();
+            int depth = depths.get(parentKey);
+            if (depth >= maxDepth)
+                continue;
+            BACNode parent = nodes.get(parentKey);
+            for (String key : children.getOrDefault(parentKey, Collections.emptyList())) {
+                parent.getChildren().add(nodes.get(key));
+                if (depths.putIfAbsent(key, depth + 1) == null)
+                    queue.add(key);
+            }
+        }
+        nodes.remove("");
+        for (BACNode node : nodes.values()) {
+            if (node.getChildren().isEmpty() && node.getBac().getEnd() < cover)
+                node.mark(true);
+        }
+        if (root.getChildren().isEmpty())
+            root.mark(true);
+        return root;
+    }
+
+    /**
+     * runs the query holding a permit, bounded by the query timeout and by the remaining time of the budget
+     * @param ps - statement of the query
+     * @param query - query
+     * @param <T> - result type
+     * @return - result of the query
+     * @throws SQLException - SQL exception, SQLTimeoutException if the query was cut by the deadline
+     */
+    private <T> T execute(PreparedStatement ps, Query<T> query) throws SQLException {
+        acquire();
+        Execution execution = null;
+        ScheduledFuture<?> canceller = null;
+        try {
+            int timeout = queryTimeout;
+            if (budget != null) {
+                int remaining = budget.getQueryTimeout();
+                if (remaining > 0 && (timeout == 0 || remaining < timeout))
+                    timeout = remaining;
+                long millis = budget.getRemainingMillis();
+                if (millis != Long.MAX_VALUE) {
+                    execution = new Execution(ps);
+                    canceller = CANCELLER.schedule(execution::cancel, millis, TimeUnit.MILLISECONDS);
+                }
+            }
+            ps.setQueryTimeout(timeout);
+            return query.run();
+        } catch (SQLException e) {
+            // drivers report a cancelled statement in different ways
+            if (execution != null && execution.finish() && !(e instanceof SQLTimeoutException))
+                throw new SQLTimeoutException("query cancelled at the search deadline", e);
+            throw e;
+        } finally {
+            // the statement is released only once a late cancel can no longer reach it
+            if (execution != null) {
+                execution.finish();
+                canceller.cancel(false);
+            }
+            release();
+        }
+    }
+
+    /**
+     * Single run of a statement, cancelled by the canceller only while it runs, so a cancel that fires as the
+     * query completes cannot reach the next query of a pooled statement or connection
+     */
+    private static class Execution {
+        private final PreparedStatement ps;
+        private boolean running = true;
+        private boolean cancelled;
+
+        /**
+         * Constructor
+         * @param ps - statement of the query
+         */
+        Execution(PreparedStatement ps) {
+            this.ps = ps;
+        }
+
+        /**
+         * cancels the query if it is still running
+         */
+        synchronized void cancel() {
+            if (!running)
+                return;
+            cancelled = true;
+            try {
+                ps.cancel();
+            } catch (SQLException e) {
+                // the statement is closed
+            }
+        }
+
+        /**
+         * marks the query as finished, a later cancel does nothing
+         * @return - true if the query was cancelled
+         */
+        synchronized boolean finish() {
+            running = false;
+            return cancelled;
+        }
+    }
+
+    /**
+     * waits for a query permit
+     * @throws SQLException - SQL exception, if interrupted
+     */
+    private void acquire() throws SQLException {
+        if (permits == null)
+            return;
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a query permit", e);
+        }
+    }
+
+    private void release() {
+        if (permits != null)
+            permits.release();
+    }
+
+    /**
+     *
+     * @return - query timeout in seconds, 0 for none
+     */
+    public int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * sets the timeout of the queries run from now on
+     * @param seconds - query timeout in seconds, 0 for none
+     */
+    public void setQueryTimeout(int seconds) {
+        this.queryTimeout = seconds;
+    }
+
+    /**
+     *
+     * @return - database connection
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     *
+     * @return - search budget bounding the queries, null for none
+     */
+    public SearchBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * sets the search budget of the queries run from now on, every query ends no later than its deadline
+     * @param budget - search budget, null for none
+     */
+    public void setBudget(SearchBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     *
+     * @param name - bac name
+     * @param start - start coordinate
+     * @param end - end coordinate
+     * @return - key of the bac placement
+     */
+    private static String getKey(String name, int start, int end) {
+        return name + "\t" + start + "\t" + end;
+    }
+
+    /**
+     * closes the prepared statements, the connection is left open
+     * @throws SQLException - SQL exception
+     */
+    @Override
+    public void close() throws SQLException {
+        SQLException failure = null;
+        for (PreparedStatement ps : new PreparedStatement[]{rootStatement, childStatement, treeStatement,
+                startsStatement}) {
+            try {
+                if (ps != null)
+                    ps.close();
+            } catch (SQLException e) {
+                if (failure == null)
+                    failure = e;
+                else
+                    failure.addSuppressed(e);
+            }
+        }
+        rootStatement = null;
+        childStatement = null;
+        treeStatement = null;
+        startsStatement = null;
+        if (failure != null)
+            throw failure;
+    }
+}
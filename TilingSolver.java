@@ -0,0 +1,220 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Minimum tiling path solver.
+ * Works on the sorted candidate bacs of every library and finds the chains with the fewest bacs
+ * (and then the shortest span) that cover the locus. A chain follows the rules of the tree search:
+ * the next bac starts after the previous bac start, no later than the previous bac end,
+ * and ends after the previous bac end.
+ * For every bac the best chain to the locus close is computed once, visiting bacs by decreasing
+ * end and looking up the best successor in a segment tree over the start order, so a library
+ * of n candidates is solved in O(n log n). Libraries are independent, large windows are solved
+ * with a library per worker
+ */
+class TilingSolver {
+    private static final long NONE = Long.MAX_VALUE;
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    private TilingSolver() {
+    }
+
+    /**
+     *
+     * @param candidates - candidate bacs of the locus window
+     * @param open - locus open position
+     * @param close - locus close position
+     * @return - root of the tree which holds the minimum bac count chains of every library
+     */
+    static BACNode solve(BACStore candidates, int open, int close) {
+        BACStore sorted = candidates.sort();
+        int[] segments = sorted.getSegments();
+        List<List<BACNode>> chains = new ArrayList<>();
+        for (int i = 0; i + 1 < segments.length; i++) {
+            chains.add(new ArrayList<>());
+        }
+        IntStream libraries = IntStream.range(0, chains.size());
+        if (chains.size() > 1 && sorted.size() >= PARALLEL_THRESHOLD)
+            libraries = libraries.parallel();
+        libraries.forEach(i -> solveLibrary(sorted, segments[i], segments[i + 1], open, close, chains.get(i)));
+        BACNode root = new BACNode();
+        for (List<BACNode> chain : chains) {
+            root.getChildren().addAll(chain);
+        }
+        root.getChildren().sort(new BACNode.NodeComparator());
+        return root;
+    }
+
+    /**
+     * finds the minimum bac count chains of a library
+     * @param store - candidate bacs sorted by chromosome, library and start
+     * @param from - first row of the library
+     * @param to - row after the last one of the library
+     * @param open - locus open position
+     * @param close - locus close position
+     * @param chains - first nodes of the chains
+     */
+    private static void solveLibrary(BACStore store, int from, int to, int open, int close, List<BACNode> chains) {
+        int size = to - from;
+        int[] starts = new int[size];
+        int[] ends = new int[size];
+        for (int i = 0; i < size; i++) {
+            starts[i] = store.getStart(from + i);
+            ends[i] = store.getEnd(from + i);
+        }
+        Integer[] byEnd = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            byEnd[i] = i;
+        }
+        Arrays.sort(byEnd, (i, j) -> Integer.compare(ends[j], ends[i]));
+
+        // best[i] - bac count of the best chain from i to the close in the high bits, its last end in the low bits
+        long[] best = new long[size];
+        int[] next = new int[size];
+        Arrays.fill(best, NONE);
+        Arrays.fill(next, -1);
+        MinTree successors = new MinTree(size, best);
+
+        int group = 0;
+        while (group < size) {
+            int groupEnd = group;
+            while (groupEnd < size && ends[byEnd[groupEnd]] == ends[byEnd[group]])
+                groupEnd++;
+            // successors must end after the bac, so equal ends are inserted after the whole group is solved
+            for (int k = group; k < groupEnd; k++) {
+                int i = byEnd[k];
+                if (ends[i] >= close) {
+                    best[i] = key(1, ends[i]);
+                } else {
+                    int j = successors.min(upperBound(starts, starts[i]), upperBound(starts, ends[i]));
+                    if (j >= 0) {
+                        best[i] = best[j] + (1L << 32);
+                        next[i] = j;
+                    }
+                }
+            }
+            for (int k = group; k < groupEnd; k++) {
+                if (best[byEnd[k]] != NONE)
+                    successors.update(byEnd[k]);
+            }
+            group = groupEnd;
+        }
+
+        int minCount = Integer.MAX_VALUE;
+        for (int i = 0; i < size && starts[i] <= open; i++) {
+            if (ends[i] > open && best[i] != NONE)
+                minCount = Math.min(minCount, (int) (best[i] >>> 32));
+        }
+        BACNode[] nodes = new BACNode[size];
+        for (int i = 0; i < size && starts[i] <= open; i++) {
+            if (ends[i] > open && best[i] != NONE && (int) (best[i] >>> 32) == minCount)
+                chains.add(getChain(i, store, from, next, nodes));
+        }
+    }
+
+    /**
+     * builds the chain of nodes from the bac to the close, sharing already built suffixes
+     * @param first - index of the first bac of the chain
+     * @param store - sorted bacs
+     * @param from - first row of the library
+     * @param next - index of the best successor of every bac
+     * @param nodes - nodes built so far
+     * @return - node of the first bac
+     */
+    private static BACNode getChain(int first, BACStore store, int from, int[] next, BACNode[] nodes) {
+        int i = first;
+        BACNode head = null;
+        BACNode tail = null;
+        while (i >= 0) {
+            boolean built = nodes[i] != null;
+            if (!built)
+                nodes[i] = new BACNode(store.getBAC(from + i));
+            if (tail != null)
+                tail.getChildren().add(nodes[i]);
+            else
+                head = nodes[i];
+            if (built)
+                break;
+            tail = nodes[i];
+            i = next[i];
+        }
+        return head;
+    }
+
+    /**
+     *
+     * @param count - number of bacs
+     * @param lastEnd - end coordinate of the last bac
+     * @return - chain key, smaller is better
+     */
+    private static long key(int count, int lastEnd) {
+        return ((long) count << 32) | (lastEnd & 0xffffffffL);
+    }
+
+    /**
+     *
+     * @param starts - sorted start coordinates
+     * @param value - coordinate
+     * @return - index of the first start after the coordinate
+     */
+    static int upperBound(int[] starts, int value) {
+        int low = 0;
+        int high = starts.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Segment tree which keeps the index of the smallest key over ranges of the start order
+     */
+    private static class MinTree {
+        private final int leaves;
+        private final int[] tree;
+        private final long[] keys;
+
+        MinTree(int size, long[] keys) {
+            this.leaves = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+            this.tree = new int[2 * leaves];
+            this.keys = keys;
+            Arrays.fill(tree, -1);
+        }
+
+        void update(int index) {
+            int node = leaves + index;
+            tree[node] = index;
+            for (node >>>= 1; node > 0; node >>>= 1)
+                tree[node] = smaller(tree[2 * node], tree[2 * node + 1]);
+        }
+
+        int min(int from, int to) {
+            int result = -1;
+            for (int left = from + leaves, right = to + leaves; left < right; left >>>= 1, right >>>= 1) {
+                if ((left & 1) == 1)
+                    result = smaller(result, tree[left++]);
+                if ((right & 1) == 1)
+                    result = smaller(result, tree[--right]);
+            }
+            return result;
+        }
+
+        private int smaller(int i, int j) {
+            if (i < 0)
+                return j;
+            if (j < 0)
+                return i;
+            return keys[j] < keys[i] ? j : i;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.objects;
+
+import java.nio.IntBuffer;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Genome wide minimum tiling table.
+ * For every bac of a sorted library the successor which reaches furthest is computed once, offline:
+ * among the bacs of the same chromosome and library that start after the bac start, no later than
+ * the bac end, and end after the bac end, the one with the largest end. Following successors from
+ * a bac gives the fewest bacs needed to reach any position, so a locus is answered without a search:
+ * the bacs overlapping the open position are found by binary search, their successor chains are
+ * followed to the close and the last link is spliced to the successor with the shortest overshoot.
+ * The chains have the bac count of TilingSolver chains from the same first bacs, but where several
+ * chains tie the table keeps the one reaching furthest at every link rather than the shortest span.
+ * The successors are a single int column over the rows of the store, BACLibraryFile persists them
+ * next to the rows. Other queries are answered by the underlying index, so the table is a BACSource
+ * and a MIN_TILING BACTree built from it reads the table instead of solving the locus window.
+ * Successors are composed into jump tables, the row reached after 2^k successors, so the bac count
+ * of a chain, and with it the minimum bac count of a library over a locus, takes O(log n) per first bac
+ */
+public class TilingTable implements BACSource {
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    private final BACIndex index;
+    private final BACStore store;
+    private final IntBuffer successors;
+    // jumps[k] - row reached after 2^(k+1) successors, -1 for none
+    private final int[][] jumps;
+    // chromosome -> library -> first row of the library followed by the row after the last one
+    private final Map<String, Map<String, int[]>> chromosomes = new HashMap<>();
+
+    /**
+     * Constructor, computes the successors of the indexed bacs
+     * @param index - index of the bacs
+     */
+    public TilingTable(BACIndex index) {
+        this(index, getSuccessors(index.getStore(), index.getStore().getSegments()));
+    }
+
+    /**
+     * Constructor over precomputed successors, e.g. a mapped library file
+     * @param index - index of the bacs
+     * @param successors - successor row of every row of the index store, -1 for none
+     */
+    TilingTable(BACIndex index, IntBuffer successors) {
+        this.index = index;
+        this.store = index.getStore();
+        this.successors = successors;
+        int[] segments = store.getSegments();
+        for (int i = 0; i + 1 < segments.length; i++) {
+            chromosomes.computeIfAbsent(store.getChromosome(segments[i]), chr -> new TreeMap<>())
+                    .put(store.getLibrary(segments[i]), new int[]{segments[i], segments[i + 1]});
+        }
+        this.jumps = getJumps(successors);
+    }
+
+    /**
+     * composes the successors until no chain is long enough for the next power of two
+     * @param successors - successor row of every row
+     * @return - row reached after 2^(k+1) successors of every row, for every k
+     */
+    private static int[][] getJumps(IntBuffer successors) {
+        List<int[]> jumps = new ArrayList<>();
+        int size = successors.limit();
+        int[] previous = new int[size];
+        for (int row = 0; row < size; row++) {
+            previous[row] = successors.get(row);
+        }
+        while (true) {
+            int[] last = previous;
+            int[] jump = new int[size];
+            boolean reached = false;
+            for (int row = 0; row < size; row++) {
+                jump[row] = last[row] < 0 ? -1 : last[last[row]];
+                reached |= jump[row] >= 0;
+            }
+            if (!reached)
+                break;
+            jumps.add(jump);
+            previous = jump;
+        }
+        return jumps.toArray(new int[0][]);
+    }
+
+    /**
+     * computes the furthest reaching successor of every row, libraries are computed in parallel
+     * @param store - store sorted by chromosome, library and start
+     * @param segments - group bounds of the store
+     * @return - successor row of every row, -1 for none
+     */
+    static IntBuffer getSuccessors(BACStore store, int[] segments) {
+        IntBuffer successors = IntBuffer.allocate(store.size());
+        IntStream libraries = IntStream.range(0, segments.length - 1);
+        if (store.size() >= PARALLEL_THRESHOLD)
+            libraries = libraries.parallel();
+        libraries.forEach(i -> getSuccessors(store, segments[i], segments[i + 1], successors));
+        return successors;
+    }
+
+    /**
+     * computes the successors of a library
+     * @param store - sorted store
+     * @param from - first row of the library
+     * @param to - row after the last one of the library
+     * @param successors - successor row of every row
+     */
+    private static void getSuccessors(BACStore store, int from, int to, IntBuffer successors) {
+        int size = to - from;
+        int[] starts = new int[size];
+        int[] ends = new int[size];
+        for (int i = 0; i < size; i++) {
+            starts[i] = store.getStart(from + i);
+            ends[i] = store.getEnd(from + i);
+        }
+        MaxTree furthest = new MaxTree(ends);
+        for (int i = 0; i < size; i++) {
+            int j = furthest.max(TilingSolver.upperBound(starts, starts[i]), TilingSolver.upperBound(starts, ends[i]));
+            successors.put(from + i, j >= 0 && ends[j] > ends[i] ? from + j : -1);
+        }
+    }
+
+    /**
+     *
+     * @param chr - chromosome
+     * @param open - locus open position
+     * @param close - locus close position
+     * @return - root of the tree which holds the minimum bac count chains of every library
+     */
+    public BACNode solve(String chr, int open, int close) {
+        List<BACNode> chains = new ArrayList<>();
+        for (int[] library : chromosomes.getOrDefault(chr, Collections.emptyMap()).values()) {
+            solveLibrary(library[0], library[1], open, close, chains);
+        }
+        BACNode root = new BACNode();
+        root.getChildren().addAll(chains);
+        root.getChildren().sort(new BACNode.NodeComparator());
+        return root;
+    }
+
+    /**
+     * finds the minimum bac count chains of a library
+     * @param from - first row of the library
+     * @param to - row after the last one of the library
+     * @param open - locus open position
+     * @param close - locus close position
+     * @param chains - first nodes of the chains
+     */
+    private void solveLibrary(int from, int to, int open, int close, List<BACNode> chains) {
+        int minCount = getMinCount(from, to, open, close);
+        if (minCount == Integer.MAX_VALUE)
+            return;
+        // bacs overlapping the open position start within the largest bac length before it
+        int first = upperBound(from, to, open - index.getMaxLength() - 1);
+        int last = upperBound(first, to, open);
+        Map<Integer, BACNode> nodes = new HashMap<>();
+        for (int row = first; row < last; row++) {
+            if (store.getEnd(row) > open && getCount(row, close) == minCount)
+                chains.add(getChain(row, to, close, nodes));
+        }
+    }
+
+    /**
+     *
+     * @param chr - chromosome
+     * @param library - library, the first three characters of the bac names
+     * @param open - locus open position
+     * @param close - locus close position
+     * @return - fewest bacs of the library which cover the locus, -1 if the library cannot cover it
+     */
+    public int getMinCount(String chr, String library, int open, int close) {
+        int[] bounds = chromosomes.getOrDefault(chr, Collections.emptyMap()).get(library);
+        if (bounds == null)
+            return -1;
+        int minCount = getMinCount(bounds[0], bounds[1], open, close);
+        return minCount == Integer.MAX_VALUE ? -1 : minCount;
+    }
+
+    /**
+     *
+     * @param chr - chromosome
+     * @param open - locus open position
+     * @param close - locus close position
+     * @return - fewest bacs which cover the locus by library, libraries which cannot cover it are left out
+     */
+    public Map<String, Integer> getMinCounts(String chr, int open, int close) {
+        Map<String, Integer> minCounts = new TreeMap<>();
+        for (Map.Entry<String, int[]> library : chromosomes.getOrDefault(chr, Collections.emptyMap()).entrySet()) {
+            int minCount = getMinCount(library.getValue()[0], library.getValue()[1], open, close);
+            if (minCount != Integer.MAX_VALUE)
+                minCounts.put(library.getKey(), minCount);
+        }
+        return minCounts;
+    }
+
+    /**
+     *
+     * @param chr - chromosome
+     * @param library - library, the first three characters of the bac names
+     * @param open - locus open position
+     * @param close - locus close position
+     * @return - true, if bacs of the library can cover the locus
+     */
+    public boolean isCoverable(String chr, String library, int open, int close) {
+        return getMinCount(chr, library, open, close) > 0;
+    }
+
+    /**
+     *
+     * @param from - first row of the library
+     * @param to - row after the last one of the library
+     * @param open - locus open position
+     * @param close - locus close position
+     * @return - fewest bacs of the library which cover the locus, Integer.MAX_VALUE if the close is not reached
+     */
+    private int getMinCount(int from, int to, int open, int close) {
+        int first = upperBound(from, to, open - index.getMaxLength() - 1);
+        int last = upperBound(first, to, open);
+        int minCount = Integer.MAX_VALUE;
+        for (int row = first; row < last; row++) {
+            if (store.getEnd(row) > open)
+                minCount = Math.min(minCount, getCount(row, close));
+        }
+        return minCount;
+    }
+
+    /**
+     * jumps along the chain while the close is not reached, ends grow along a chain
+     * @param row - first row of the chain
+     * @param close - locus close position
+     * @return - number of bacs of the chain from the row to the close, Integer.MAX_VALUE if the close is not reached
+     */
+    int getCount(int row, int close) {
+        if (store.getEnd(row) >= close)
+            return 1;
+        int count = 1;
+        for (int k = jumps.length - 1; k >= 0; k--) {
+            int next = jumps[k][row];
+            if (next >= 0 && store.getEnd(next) < close) {
+                row = next;
+                count += 2 << k;
+            }
+        }
+        int next = successors.get(row);
+        if (next >= 0 && store.getEnd(next) < close) {
+            row = next;
+            count++;
+        }
+        // the successor of the last bac ending before the close reaches it
+        return successors.get(row) >= 0 ? count + 1 : Integer.MAX_VALUE;
+    }
+
+    /**
+     * builds the chain of nodes from the row to the close, sharing already built suffixes
+     * @param first - first row of the chain
+     * @param to - row after the last one of the library
+     * @param close - locus close position
+     * @param nodes - nodes built so far by row
+     * @return - node of the first bac
+     */
+    private BACNode getChain(int first, int to, int close, Map<Integer, BACNode> nodes) {
+        int row = first;
+        BACNode head = null;
+        BACNode tail = null;
+        while (row >= 0) {
+            BACNode node = nodes.get(row);
+            boolean built = node != null;
+            if (!built) {
+                node = new BACNode(store.getBAC(row));
+                nodes.put(row, node);
+            }
+            if (tail != null)
+                tail.getChildren().add(node);
+            else
+                head = node;
+            if (built)
+                break;
+            tail = node;
+            row = store.getEnd(row) < close ? getNext(row, to, close) : -1;
+        }
+        return head;
+    }
+
+    /**
+     *
+     * @param row - row of a bac which ends before the close
+     * @param to - row after the last one of the library
+     * @param close - locus close position
+     * @return - furthest reaching successor, or the successor which reaches the close with the smallest end
+     */
+    private int getNext(int row, int to, int close) {
+        int next = successors.get(row);
+        if (store.getEnd(next) < close)
+            return next;
+        int from = upperBound(row + 1, to, store.getStart(row));
+        int last = upperBound(from, to, store.getEnd(row));
+        for (int j = from; j < last; j++) {
+            if (store.getEnd(j) >= close && store.getEnd(j) < store.getEnd(next))
+                next = j;
+        }
+        return next;
+    }
+
+    /**
+     *
+     * @param from - first row of the range
+     * @param to - row after the last one of the range
+     * @param value - coordinate
+     * @return - first row of the range which starts after the coordinate
+     */
+    private int upperBound(int from, int to, int value) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (store.getStart(mid) <= value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     *
+     * @return - successor row of every row of the store, -1 for none
+     */
+    IntBuffer getSuccessors() {
+        return successors;
+    }
+
+    /**
+     *
+     * @return - index of the bacs
+     */
+    public BACIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public List<BAC> findBACs(BAC parent, String chr, int start, int end) {
+        return index.findBACs(parent, chr, start, end);
+    }
+
+    @Override
+    public BACStore findWindow(String chr, int open, int close) {
+        return index.findWindow(chr, open, close);
+    }
+
+    @Override
+    public BACStore findStarts(String chr, int from, int to) {
+        return index.findStarts(chr, from, to);
+    }
+
+    @Override
+    public int getMaxLength() {
+        return index.getMaxLength();
+    }
+
+    /**
+     * Static segment tree which keeps the index of the largest end over ranges of the start order,
+     * the first one of equal ends
+     */
+    private static class MaxTree {
+        private final int leaves;
+        private final int[] tree;
+        private final int[] ends;
+
+        MaxTree(int[] ends) {
+            this.leaves = Integer.highestOneBit(Math.max(1, ends.length - 1)) << 1;
+            this.tree = new int[2 * leaves];
+            this.ends = ends;
+            Arrays.fill(tree, -1);
+            for (int i = 0; i < ends.length; i++) {
+                tree[leaves + i] = i;
+            }
+            for (int node = leaves - 1; node > 0; node--) {
+                tree[node] = larger(tree[2 * node], tree[2 * node + 1]);
+            }
+        }
+
+        int max(int from, int to) {
+            int result = -1;
+            for (int left = from + leaves, right = to + leaves; left < right; left >>>= 1, right >>>= 1) {
+                if ((left & 1) == 1)
+                    result = larger(result, tree[left++]);
+                if ((right & 1) == 1)
+                    result = larger(result, tree[--right]);
+            }
+            return result;
+        }
+
+        private int larger(int i, int j) {
+            if (i < 0)
+                return j;
+            if (j < 0)
+                return i;
+            return ends[j] > ends[i] || (ends[j] == ends[i] && j < i) ? j : i;
+        }
+    }
+}
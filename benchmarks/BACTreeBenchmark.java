@@ -0,0 +1,134 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.benchmarks;
+
+import org.nyumc.isg.lims.common.NaryPath;
+import org.nyumc.isg.lims.objects.BACIndex;
+import org.nyumc.isg.lims.objects.BACTree;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tree construction, path enumeration, ranking and json output over a synthetic library.
+ * Every invocation covers one locus, so with -prof gc the normalized allocation rate is garbage per locus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BACTreeBenchmark {
+    private static final String CHR = "chr1";
+    private static final int CHROMOSOME_LENGTH = 20000000;
+    private static final int LOCI = 16;
+
+    @Param({"RP11", "CH17"})
+    public SyntheticLibrary.Profile library;
+
+    @Param({"1.5", "3"})
+    public double depth;
+
+    @Param({"200000", "1000000"})
+    public int locusSize;
+
+    @Param({"MIN_TILING", "LOCUS_WINDOW"})
+    public BACTree.Mode mode;
+
+    private BACIndex index;
+    private int[] opens;
+    private BACTree[] trees;
+    private List<List<NaryPath>> paths;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        index = new BACIndex(SyntheticLibrary.generate(library, CHR, CHROMOSOME_LENGTH, depth, 17));
+        opens = new int[LOCI];
+        trees = new BACTree[LOCI];
+        paths = new ArrayList<>();
+        for (int i = 0; i < LOCI; i++) {
+            opens[i] = library.getMeanLength() + i * (CHROMOSOME_LENGTH - locusSize - 2 * library.getMeanLength()) / LOCI;
+            trees[i] = new BACTree(CHR, opens[i], opens[i] + locusSize, index, mode);
+            paths.add(trees[i].getBACPaths());
+        }
+    }
+
+    private int nextLocus() {
+        next = (next + 1) % LOCI;
+        return next;
+    }
+
+    @Benchmark
+    public BACTree buildTree() throws SQLException {
+        int locus = nextLocus();
+        return new BACTree(CHR, opens[locus], opens[locus] + locusSize, index, mode);
+    }
+
+    @Benchmark
+    public List<NaryPath> enumeratePaths() {
+        return trees[nextLocus()].getBACPaths();
+    }
+
+    @Benchmark
+    public List<NaryPath> rankPaths() {
+        List<NaryPath> ranked = new ArrayList<>(paths.get(nextLocus()));
+        ranked.sort(new NaryPath.PathComparator());
+        return ranked;
+    }
+
+    @Benchmark
+    public List<NaryPath> topPaths() {
+        return trees[nextLocus()].getBACPaths(10);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return trees[nextLocus()].toJson();
+    }
+
+    @Benchmark
+    public void streamJson(Blackhole blackhole) throws IOException {
+        trees[nextLocus()].toJson(new BlackholeWriter(blackhole));
+    }
+
+    /**
+     * Writer which consumes the characters
+     */
+    private static class BlackholeWriter extends Writer {
+        private final Blackhole blackhole;
+
+        BlackholeWriter(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            blackhole.consume(buffer);
+            blackhole.consume(length);
+        }
+
+        @Override
+        public void write(String value, int offset, int length) {
+            blackhole.consume(value);
+            blackhole.consume(length);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.benchmarks;
+
+import org.nyumc.isg.lims.objects.BACStore;
+
+import java.util.Random;
+
+/**
+ * Synthetic BAC library: clones placed uniformly on a chromosome with normally distributed insert sizes
+ */
+public class SyntheticLibrary {
+    /**
+     * Insert size distribution of a library
+     */
+    public enum Profile {
+        /** RPCI-11, human male, EcoRI/MboI, ~175 kb inserts */
+        RP11("RP11-", 175000, 25000),
+        /** CHORI-17, hydatidiform mole, ~195 kb inserts */
+        CH17("CH17-", 195000, 30000);
+
+        private final String prefix;
+        private final int meanLength;
+        private final int sdLength;
+
+        Profile(String prefix, int meanLength, int sdLength) {
+            this.prefix = prefix;
+            this.meanLength = meanLength;
+            this.sdLength = sdLength;
+        }
+
+        public int getMeanLength() {
+            return meanLength;
+        }
+    }
+
+    private SyntheticLibrary() {
+    }
+
+    /**
+     *
+     * @param profile - library profile
+     * @param chr - chromosome
+     * @param length - chromosome length
+     * @param depth - clone coverage, average number of clones over a position
+     * @param seed - random seed
+     * @return - store of the library clones
+     */
+    public static BACStore generate(Profile profile, String chr, int length, double depth, long seed) {
+        Random random = new Random(seed);
+        BACStore store = new BACStore();
+        int count = (int) (depth * length / profile.meanLength);
+        for (int i = 0; i < count; i++) {
+            double gaussian = Math.max(-3, Math.min(3, random.nextGaussian()));
+            int size = (int) (profile.meanLength + gaussian * profile.sdLength);
+            int start = random.nextInt(length);
+            // plate, row and column of the clone, e.g. RP11-345K12
+            String name = profile.prefix + (1 + i / 384) + (char) ('A' + (i % 384) / 24) + (1 + i % 24);
+            store.add(name, chr, start, start + size, 0, random.nextBoolean() ? "+" : "-", start, start + size);
+        }
+        return store;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.loadtest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection wrapper which counts the queries executed through its statements
+ */
+public class CountingConnection {
+    private CountingConnection() {
+    }
+
+    /**
+     *
+     * @param connection - database connection
+     * @param queries - counter of executed queries
+     * @return - connection which counts executeQuery and execute calls of its statements
+     */
+    public static Connection wrap(Connection connection, AtomicLong queries) {
+        return proxy(Connection.class, connection, (target, method, args) -> {
+            Object result = invoke(target, method, args);
+            if (result instanceof PreparedStatement)
+                return proxy(PreparedStatement.class, result, count(queries));
+            if (result instanceof Statement)
+                return proxy(Statement.class, result, count(queries));
+            return result;
+        });
+    }
+
+    /**
+     *
+     * @param queries - counter of executed queries
+     * @return - statement handler
+     */
+    private static Handler count(AtomicLong queries) {
+        return (target, method, args) -> {
+            if (method.getName().startsWith("execute") && !method.getName().equals("executeBatch"))
+                queries.incrementAndGet();
+            return invoke(target, method, args);
+        };
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static <T> T proxy(Class<T> type, Object target, Handler handler) {
+        InvocationHandler invocationHandler = (proxy, method, args) -> handler.invoke(target, method, args);
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, invocationHandler));
+    }
+
+    /**
+     * Call handler of a wrapped object
+     */
+    private interface Handler {
+        Object invoke(Object target, Method method, Object[] args) throws Throwable;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.loadtest;
+
+import org.nyumc.isg.lims.benchmarks.SyntheticLibrary;
+import org.nyumc.isg.lims.common.NaryPath;
+import org.nyumc.isg.lims.objects.BACTree;
+import org.nyumc.isg.lims.objects.SqlBACSource;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * Equivalence check of the RECURSIVE_CTE search against the PER_NODE search on an embedded lims schema.
+ * The bac table is created and filled with synthetic RP11 and CH17 libraries, then the tree of every locus is
+ * built in both modes on the same connection and the ranked paths of the trees are compared as json, the json of
+ * a tree lists its paths in depth first order, which depends on the order of the children. Every size of the mix
+ * gets the same number of loci, size 0 is a single position. Exits with status 1 if any locus differs.
+ * Options (--name=value): url, table, chromosomes, length, depth, sizes, loci (per size), seed
+ */
+public class CteCheck {
+    private final Map<String, String> options = new HashMap<>();
+
+    /**
+     * Constructor
+     * @param args - --name=value options
+     */
+    public CteCheck(String[] args) {
+        options.put("url", "jdbc:h2:mem:lims;MODE=MySQL;DB_CLOSE_DELAY=-1");
+        options.put("table", "bac_synthetic");
+        options.put("chromosomes", "2");
+        options.put("length", "5000000");
+        options.put("depth", "3");
+        options.put("sizes", "0,20000,200000");
+        options.put("loci", "100");
+        options.put("seed", "17");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0 || !options.containsKey(arg.substring(2, equals)))
+                throw new IllegalArgumentException("unknown option " + arg + ", options: " + options.keySet());
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+    }
+
+    /**
+     * runs the check, e.g. CteCheck --sizes=0,50000 --loci=500
+     * @param args - --name=value options
+     * @throws SQLException - SQL exception
+     */
+    public static void main(String[] args) throws SQLException {
+        if (new CteCheck(args).run() > 0)
+            System.exit(1);
+    }
+
+    /**
+     * creates the database and compares the trees of both modes
+     * @return - number of loci whose trees differ
+     * @throws SQLException - SQL exception
+     */
+    public int run() throws SQLException {
+        String table = options.get("table");
+        int chromosomes = Integer.parseInt(options.get("chromosomes"));
+        int length = Integer.parseInt(options.get("length"));
+        double depth = Double.parseDouble(options.get("depth"));
+        int count = Integer.parseInt(options.get("loci"));
+        long seed = Long.parseLong(options.get("seed"));
+
+        try (Connection connection = DriverManager.getConnection(options.get("url"))) {
+            LimsDatabase.create(connection, table);
+            int bacs = 0;
+            for (SyntheticLibrary.Profile profile : SyntheticLibrary.Profile.values()) {
+                bacs += LimsDatabase.fill(connection, table, profile, chromosomes, length, depth,
+                        seed + profile.ordinal() * 1000L);
+            }
+            System.out.printf("%s: %d bacs on %d chromosomes, coverage %.1f per library%n",
+                    table, bacs, chromosomes, depth);
+
+            Random random = new Random(seed);
+            int differ = 0;
+            for (String value : options.get("sizes").split(",")) {
+                int size = Integer.parseInt(value.trim());
+                int same = 0;
+                for (int i = 0; i < count; i++) {
+                    String chr = "chr" + (1 + random.nextInt(chromosomes));
+                    int open = random.nextInt(Math.max(1, length - size));
+                    String expected;
+                    String actual;
+                    try (SqlBACSource source = new SqlBACSource(connection, table)) {
+                        expected = toJson(new BACTree(chr, open, open + size, source, BACTree.Mode.PER_NODE));
+                        actual = toJson(new BACTree(chr, open, open + size, source, BACTree.Mode.RECURSIVE_CTE));
+                    }
+                    if (expected.equals(actual)) {
+                        same++;
+                    } else if (differ++ < 10) {
+                        System.out.printf("%s:%d-%d differs%n  PER_NODE      %s%n  RECURSIVE_CTE %s%n",
+                                chr, open, open + size, expected, actual);
+                    }
+                }
+                System.out.printf("size %d: %d/%d identical%n", size, same, count);
+            }
+            return differ;
+        }
+    }
+
+    /**
+     *
+     * @param tree - bac tree
+     * @return - json array of the ranked paths of the tree
+     */
+    private static String toJson(BACTree tree) {
+        return tree.getBACPaths().stream().map(NaryPath::toJson).collect(Collectors.joining(",", "[", "]"));
+    }
+}
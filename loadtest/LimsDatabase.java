@@ -0,0 +1,88 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.loadtest;
+
+import org.nyumc.isg.lims.benchmarks.SyntheticLibrary;
+import org.nyumc.isg.lims.objects.BAC;
+import org.nyumc.isg.lims.objects.BACStore;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Embedded stand-in of the lims schema: creates a lims.bac_[source] table with the LIMS columns
+ * and fills it with synthetic clone libraries
+ */
+public class LimsDatabase {
+    private static final int BATCH_SIZE = 1000;
+
+    private LimsDatabase() {
+    }
+
+    /**
+     * (re)creates the table, indexed on chromosome and start like the LIMS tables
+     * @param connection - database connection
+     * @param table - database table (bac library) name
+     * @throws SQLException - SQL exception
+     */
+    public static void create(Connection connection, String table) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("create schema if not exists lims");
+            statement.execute("drop table if exists lims." + table);
+            statement.execute("create table lims." + table + " (bin varchar(16), chromosome varchar(32)," +
+                    " start_loc int, end_loc int, name varchar(64), score int, strand varchar(1)," +
+                    " thick_start int, thick_end int, reserved varchar(16), block_count int," +
+                    " block_size varchar(64), chrom_starts varchar(64))");
+            statement.execute("create index " + table + "_locus on lims." + table + " (chromosome, start_loc)");
+        }
+    }
+
+    /**
+     * fills the table with a synthetic library on every chromosome
+     * @param connection - database connection
+     * @param table - database table (bac library) name
+     * @param profile - library profile
+     * @param chromosomes - number of chromosomes, named chr1, chr2, ...
+     * @param length - chromosome length
+     * @param depth - clone coverage
+     * @param seed - random seed
+     * @return - number of inserted bacs
+     * @throws SQLException - SQL exception
+     */
+    public static int fill(Connection connection, String table, SyntheticLibrary.Profile profile, int chromosomes,
+                           int length, double depth, long seed) throws SQLException {
+        int count = 0;
+        try (PreparedStatement ps = connection.prepareStatement("insert into lims." + table +
+                " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            for (int chr = 1; chr <= chromosomes; chr++) {
+                BACStore store = SyntheticLibrary.generate(profile, "chr" + chr, length, depth, seed + chr);
+                for (int row = 0; row < store.size(); row++) {
+                    BAC bac = store.getBAC(row);
+                    int size = bac.getEnd() - bac.getStart();
+                    ps.setString(1, "0");
+                    ps.setString(2, bac.getChromosome());
+                    ps.setInt(3, bac.getStart());
+                    ps.setInt(4, bac.getEnd());
+                    ps.setString(5, bac.getName());
+                    ps.setInt(6, 1000);
+                    ps.setString(7, bac.getStrand());
+                    ps.setInt(8, bac.getThickStart());
+                    ps.setInt(9, bac.getThickEnd());
+                    ps.setString(10, "0");
+                    ps.setInt(11, 1);
+                    ps.setString(12, size + ",");
+                    ps.setString(13, "0,");
+                    ps.addBatch();
+                    if (++count % BATCH_SIZE == 0)
+                        ps.executeBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+        return count;
+    }
+}
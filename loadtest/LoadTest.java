@@ -0,0 +1,241 @@
+/*
+ * Institute For Systems Genetics. NYU Langone HealthCopyright (c) 2021. Created by Sergei German
+ */
+
+package org.nyumc.isg.lims.loadtest;
+
+import org.nyumc.isg.lims.benchmarks.SyntheticLibrary;
+import org.nyumc.isg.lims.objects.BACTree;
+import org.nyumc.isg.lims.objects.SqlBACSource;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of BAC tree requests against an embedded lims schema.
+ * The bac table is created and filled with synthetic RP11 and CH17 libraries, then every mode is run at every
+ * concurrency level: each worker holds its own connection, like a LIMS request thread, and builds trees for
+ * loci taken from the configured mix. Every request opens and closes its own SqlBACSource, the same way
+ * BACTree(locus, mode) does with the DataSource connection.
+ * Options (--name=value): url, table, chromosomes, length, depth, loci (size:weight,...; size 0 is a single
+ * position), modes, concurrency, requests, warmup, seed
+ */
+public class LoadTest {
+    private final Map<String, String> options = new HashMap<>();
+
+    /**
+     * Constructor
+     * @param args - --name=value options
+     */
+    public LoadTest(String[] args) {
+        options.put("url", "jdbc:h2:mem:lims;MODE=MySQL;DB_CLOSE_DELAY=-1");
+        options.put("table", "bac_synthetic");
+        options.put("chromosomes", "4");
+        options.put("length", "20000000");
+        options.put("depth", "3");
+        options.put("loci", "0:1,200000:3,1000000:1");
+        options.put("modes", "PER_NODE,LOCUS_WINDOW,MIN_TILING,RECURSIVE_CTE");
+        options.put("concurrency", "1,4,16");
+        options.put("requests", "400");
+        options.put("warmup", "100");
+        options.put("seed", "17");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0 || !options.containsKey(arg.substring(2, equals)))
+                throw new IllegalArgumentException("unknown option " + arg + ", options: " + options.keySet());
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+    }
+
+    /**
+     * runs the load test, e.g. LoadTest --concurrency=1,8,32 --modes=MIN_TILING
+     * @param args - --name=value options
+     * @throws Exception - SQL or execution exception
+     */
+    public static void main(String[] args) throws Exception {
+        new LoadTest(args).run();
+    }
+
+    /**
+     * creates the database and runs every mode at every concurrency level
+     * @throws Exception - SQL or execution exception
+     */
+    public void run() throws Exception {
+        String url = options.get("url");
+        String table = options.get("table");
+        int chromosomes = Integer.parseInt(options.get("chromosomes"));
+        int length = Integer.parseInt(options.get("length"));
+        double depth = Double.parseDouble(options.get("depth"));
+        long seed = Long.parseLong(options.get("seed"));
+
+        // keeps an in-memory database alive for the whole run
+        try (Connection connection = DriverManager.getConnection(url)) {
+            LimsDatabase.create(connection, table);
+            int bacs = 0;
+            for (SyntheticLibrary.Profile profile : SyntheticLibrary.Profile.values()) {
+                bacs += LimsDatabase.fill(connection, table, profile, chromosomes, length, depth,
+                        seed + profile.ordinal() * 1000L);
+            }
+            System.out.printf("%s: %d bacs on %d chromosomes, coverage %.1f per library%n",
+                    table, bacs, chromosomes, depth);
+
+            int requests = Integer.parseInt(options.get("requests"));
+            int warmup = Integer.parseInt(options.get("warmup"));
+            List<Locus> loci = getLoci(chromosomes, length, requests + warmup, seed);
+            System.out.printf("%-14s %6s %10s %10s %10s %10s %10s %10s %7s%n", "mode", "conc", "req/s",
+                    "p50 ms", "p99 ms", "p999 ms", "max ms", "queries", "errors");
+            for (String name : options.get("modes").split(",")) {
+                BACTree.Mode mode = BACTree.Mode.valueOf(name.trim());
+                for (String level : options.get("concurrency").split(",")) {
+                    int concurrency = Integer.parseInt(level.trim());
+                    run(url, table, mode, concurrency, loci.subList(0, warmup));
+                    print(mode, concurrency, run(url, table, mode, concurrency, loci.subList(warmup, loci.size())));
+                }
+            }
+        }
+    }
+
+    /**
+     * draws the loci from the size mix, open positions are uniform over the chromosome
+     * @param chromosomes - number of chromosomes
+     * @param length - chromosome length
+     * @param count - number of loci
+     * @param seed - random seed
+     * @return - loci
+     */
+    private List<Locus> getLoci(int chromosomes, int length, int count, long seed) {
+        String[] mix = options.get("loci").split(",");
+        int[] sizes = new int[mix.length];
+        double[] weights = new double[mix.length];
+        double total = 0;
+        for (int i = 0; i < mix.length; i++) {
+            String[] entry = mix[i].trim().split(":");
+            sizes[i] = Integer.parseInt(entry[0]);
+            total += entry.length > 1 ? Double.parseDouble(entry[1]) : 1;
+            weights[i] = total;
+        }
+        Random random = new Random(seed);
+        List<Locus> loci = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            double draw = random.nextDouble() * total;
+            int size = 0;
+            while (weights[size] <= draw && size + 1 < sizes.length) {
+                size++;
+            }
+            int open = random.nextInt(Math.max(1, length - sizes[size]));
+            loci.add(new Locus("chr" + (1 + random.nextInt(chromosomes)), open, open + sizes[size]));
+        }
+        return loci;
+    }
+
+    /**
+     * builds the trees of the loci with a fixed number of workers
+     * @param url - database url
+     * @param table - database table (bac library) name
+     * @param mode - tree construction mode
+     * @param concurrency - number of workers
+     * @param loci - loci
+     * @return - result of the run
+     * @throws Exception - SQL or execution exception
+     */
+    private static Result run(String url, String table, BACTree.Mode mode, int concurrency, List<Locus> loci)
+            throws Exception {
+        Result result = new Result(loci.size());
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            List<Future<Void>> workers = new ArrayList<>();
+            long started = System.nanoTime();
+            for (int i = 0; i < concurrency; i++) {
+                workers.add(executor.submit(() -> {
+                    try (Connection connection = CountingConnection.wrap(DriverManager.getConnection(url),
+                            result.queries)) {
+                        for (int request = next.getAndIncrement(); request < loci.size();
+                             request = next.getAndIncrement()) {
+                            Locus locus = loci.get(request);
+                            long start = System.nanoTime();
+                            try (SqlBACSource source = new SqlBACSource(connection, table)) {
+                                new BACTree(locus.chr, locus.open, locus.close, source, mode);
+                            } catch (SQLException | RuntimeException e) {
+                                result.errors.incrementAndGet();
+                            }
+                            result.latencies[request] = System.nanoTime() - start;
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> worker : workers) {
+                worker.get();
+            }
+            result.elapsed = System.nanoTime() - started;
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    private static void print(BACTree.Mode mode, int concurrency, Result result) {
+        long[] latencies = result.latencies.clone();
+        Arrays.sort(latencies);
+        System.out.printf("%-14s %6d %10.1f %10.2f %10.2f %10.2f %10.2f %10.1f %7d%n", mode, concurrency,
+                latencies.length / (result.elapsed / 1e9), getPercentile(latencies, 0.5),
+                getPercentile(latencies, 0.99), getPercentile(latencies, 0.999),
+                getPercentile(latencies, 1), (double) result.queries.get() / latencies.length, result.errors.get());
+    }
+
+    /**
+     *
+     * @param sorted - sorted latencies in nanoseconds
+     * @param quantile - quantile
+     * @return - nearest rank percentile in milliseconds
+     */
+    private static double getPercentile(long[] sorted, double quantile) {
+        if (sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Requested locus
+     */
+    private static class Locus {
+        private final String chr;
+        private final int open;
+        private final int close;
+
+        Locus(String chr, int open, int close) {
+            this.chr = chr;
+            this.open = open;
+            this.close = close;
+        }
+    }
+
+    /**
+     * Latencies, query count and errors of a run
+     */
+    private static class Result {
+        private final long[] latencies;
+        private final AtomicLong queries = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private long elapsed;
+
+        Result(int requests) {
+            latencies = new long[requests];
+        }
+    }
+}